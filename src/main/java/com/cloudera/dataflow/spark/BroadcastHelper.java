@@ -16,18 +16,71 @@
 package com.cloudera.dataflow.spark;
 
 import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Iterators;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
+import org.apache.spark.SparkEnv;
+import org.apache.spark.SparkFiles;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.io.CompressionCodec;
+import org.apache.spark.io.CompressionCodec$;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 
 class BroadcastHelper<T> implements Serializable {
-  private static Logger LOG = Logger.getLogger(BroadcastHelper.class.getName());
-  private Broadcast<byte[]> bcast;
+  private static final Logger LOG = Logger.getLogger(BroadcastHelper.class.getName());
+
+  /**
+   * Side inputs decoded in this JVM, shared by all the tasks running in it, so that each side
+   * input is decoded once per executor rather than once per task. The cache is bounded by the
+   * encoded size of the side inputs, and only softly references the decoded values, so that they
+   * can be evicted under memory pressure (and decoded again when needed).
+   */
+  private static final Cache<String, DecodedValue> DECODED = CacheBuilder.newBuilder()
+      .maximumWeight(Runtime.getRuntime().maxMemory() / 4)
+      .weigher(new Weigher<String, DecodedValue>() {
+        @Override
+        public int weigh(String id, DecodedValue decoded) {
+          return decoded.encodedSize;
+        }
+      })
+      .softValues()
+      .build();
+
+  /**
+   * Side inputs are encoded into chunks of at most this size, so that the driver never needs a
+   * single array as large as the whole encoded side input.
+   */
+  private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+  private final String id = UUID.randomUUID().toString();
+  private Broadcast<byte[][]> bcast;
+  private String fileName;
   private final Coder<T> coder;
+  private String codecName;
+  private long encodedSize;
   private transient T value;
 
   BroadcastHelper(T value, Coder<T> coder) {
@@ -35,26 +88,211 @@ class BroadcastHelper<T> implements Serializable {
     this.coder = coder;
   }
 
-  public synchronized T getValue() {
+  public T getValue() {
     if (value == null) {
       value = deserialize();
     }
     return value;
   }
 
-  public void broadcast(JavaSparkContext jsc) {
-    this.bcast = jsc.broadcast(CoderHelpers.toByteArray(value, coder));
+  /**
+   * Looks the decoded value up in the executor's cache of decoded side inputs, without keeping
+   * a reference to it in the helper. Helpers which are themselves part of a cached side input,
+   * such as the shards of a {@link ShardedMap}, must be read this way, so that the cache can
+   * still evict the values they hold.
+   *
+   * @return The decoded value, which is decoded again if it was evicted.
+   */
+  T getCachedValue() {
+    T local = value;
+    return local != null ? local : deserialize();
+  }
+
+  /**
+   * Evicts the decoded value from the executor's cache, so that it's decoded again the next time
+   * it's read through {@link #getCachedValue()}.
+   */
+  void evict() {
+    DECODED.invalidate(id);
+  }
+
+  /**
+   * Encodes the value and broadcasts it.
+   *
+   * @param jsc      Spark context to broadcast with.
+   * @param compress Whether to compress the encoded value, as it's being encoded, with the
+   *                 compression codec Spark is configured with. The value isn't compressed
+   *                 when Spark compresses its broadcasts (spark.broadcast.compress), so that
+   *                 it's not compressed twice.
+   */
+  public void broadcast(JavaSparkContext jsc, boolean compress) {
+    ChunkedOutputStream chunks = new ChunkedOutputStream();
+    try {
+      encode(chunks, jsc, compress && !jsc.getConf().getBoolean("spark.broadcast.compress", true));
+    } catch (IOException e) {
+      throw new IllegalStateException("Error encoding side input", e);
+    }
+    this.bcast = jsc.broadcast(chunks.toChunks());
+    // The value is only read from the broadcast on the executors, so don't hold on to it in the
+    // driver for as long as the helper is cached.
+    this.value = null;
+  }
+
+  /**
+   * Encodes the value into a file which Spark serves from the driver's disk, instead of
+   * broadcasting it. A broadcast keeps its encoded value in the driver's memory for as long as
+   * it's valid, since the driver is where the executors fetch it from; the file is only on disk,
+   * and each executor fetches it before running its first task after it was added. The value can
+   * only be read in tasks.
+   *
+   * @param jsc      Spark context to add the file to.
+   * @param compress Whether to compress the encoded value, as it's being encoded, with the
+   *                 compression codec Spark is configured with.
+   */
+  public void addFile(JavaSparkContext jsc, boolean compress) {
+    File dir = Files.createTempDir();
+    File file = new File(dir, id);
+    try {
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+        encode(out, jsc, compress);
+      }
+      // Spark copies the file to its file server's directory as it's added.
+      jsc.addFile(file.getPath());
+    } catch (IOException e) {
+      throw new IllegalStateException("Error encoding side input", e);
+    } finally {
+      if (!file.delete() || !dir.delete()) {
+        LOG.warning("Could not delete " + file);
+      }
+    }
+    this.fileName = file.getName();
+    this.value = null;
+  }
+
+  private void encode(OutputStream sink, JavaSparkContext jsc, boolean compress)
+      throws IOException {
+    CountingOutputStream out;
+    if (compress) {
+      CompressionCodec codec = CompressionCodec$.MODULE$.createCodec(jsc.getConf());
+      this.codecName = codec.getClass().getName();
+      out = new CountingOutputStream(codec.compressedOutputStream(sink));
+    } else {
+      out = new CountingOutputStream(sink);
+    }
+    coder.encode(value, out, new Coder.Context(true));
+    out.close();
+    this.encodedSize = out.getCount();
+  }
+
+  /**
+   * Removes the executors' copies of the broadcast, which are fetched again if it's used after.
+   * Values shipped as files are left as they are.
+   */
+  public void unpersist() {
+    if (bcast != null) {
+      bcast.unpersist(false);
+    }
   }
 
   private T deserialize() {
-    T val;
     try {
-      val = coder.decode(new ByteArrayInputStream(bcast.value()), new Coder.Context(true));
-    } catch (IOException ioe) {
-      // this should not ever happen, log it if it does.
-      LOG.warning(ioe.getMessage());
-      val = null;
+      @SuppressWarnings("unchecked")
+      T val = (T) DECODED.get(id, new Callable<DecodedValue>() {
+        @Override
+        public DecodedValue call() throws IOException {
+          return new DecodedValue(decode(), (int) Math.min(encodedSize, Integer.MAX_VALUE));
+        }
+      }).value;
+      return val;
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Error decoding side input", e.getCause());
+    }
+  }
+
+  /**
+   * Decodes the value as it's read and decompressed, without reassembling the encoded value.
+   */
+  private T decode() throws IOException {
+    InputStream in = fileName != null
+        ? new BufferedInputStream(new FileInputStream(SparkFiles.get(fileName)))
+        : fromChunks();
+    if (codecName != null) {
+      in = CompressionCodec$.MODULE$.createCodec(SparkEnv.get().conf(), codecName)
+          .compressedInputStream(in);
+    }
+    try (InputStream decoded = in) {
+      return coder.decode(decoded, new Coder.Context(true));
+    }
+  }
+
+  private InputStream fromChunks() {
+    Iterator<byte[]> chunks = Arrays.asList(bcast.value()).iterator();
+    return new SequenceInputStream(Iterators.asEnumeration(
+        Iterators.transform(chunks, new com.google.common.base.Function<byte[], InputStream>() {
+          @Override
+          public InputStream apply(byte[] chunk) {
+            return new ByteArrayInputStream(chunk);
+          }
+        })));
+  }
+
+  /**
+   * Collects what's written to it into fixed-size chunks, rather than into a single array which
+   * needs to be copied every time it grows.
+   */
+  private static final class ChunkedOutputStream extends OutputStream {
+    private final List<byte[]> chunks = new ArrayList<>();
+    private byte[] current = new byte[0];
+    private int position;
+
+    @Override
+    public void write(int b) {
+      if (position == current.length) {
+        newChunk();
+      }
+      current[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      while (len > 0) {
+        if (position == current.length) {
+          newChunk();
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(b, off, current, position, n);
+        position += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    private void newChunk() {
+      if (current.length > 0) {
+        chunks.add(current);
+      }
+      // Chunks start small and grow, so that small side inputs don't take up a whole chunk.
+      current = new byte[Math.max(4096, Math.min(current.length * 2, MAX_CHUNK_SIZE))];
+      position = 0;
+    }
+
+    byte[][] toChunks() {
+      if (position > 0) {
+        chunks.add(Arrays.copyOf(current, position));
+      }
+      current = new byte[0];
+      position = 0;
+      return chunks.toArray(new byte[chunks.size()][]);
+    }
+  }
+
+  private static final class DecodedValue {
+    private final Object value;
+    private final int encodedSize;
+
+    DecodedValue(Object value, int encodedSize) {
+      this.value = value;
+      this.encodedSize = encodedSize;
     }
-    return val;
   }
 }
@@ -18,16 +18,28 @@ package com.cloudera.dataflow.spark;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
 import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import org.apache.spark.api.java.function.FlatMapFunction;
 import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.PairFunction;
+import scala.Tuple2;
 
 /**
  * Serialization utility class.
  */
 public final class CoderHelpers {
+  /**
+   * Approximate size of the blocks partitions are encoded into.
+   */
+  private static final int BLOCK_SIZE = 1024 * 1024;
+
   private CoderHelpers() {
   }
 
@@ -111,4 +123,169 @@ public final class CoderHelpers {
       }
     };
   }
+
+  /**
+   * A function wrapper for converting a key-value pair to a pair of byte arrays, so that the
+   * pair can be shuffled by its encoded key.
+   *
+   * @param keyCoder   Coder to serialize keys.
+   * @param valueCoder Coder to serialize values.
+   * @param <K>        The type of the key being serialized.
+   * @param <V>        The type of the value being serialized.
+   * @return A function that accepts a key-value pair and returns a pair of byte arrays.
+   */
+  static <K, V> PairFunction<Tuple2<K, V>, ByteArray, byte[]> toByteFunction(
+      final Coder<K> keyCoder, final Coder<V> valueCoder) {
+    return new PairFunction<Tuple2<K, V>, ByteArray, byte[]>() {
+      @Override
+      public Tuple2<ByteArray, byte[]> call(Tuple2<K, V> kv) {
+        return new Tuple2<>(new ByteArray(toByteArray(kv._1(), keyCoder)),
+            toByteArray(kv._2(), valueCoder));
+      }
+    };
+  }
+
+  /**
+   * A function wrapper for converting a byte array key and an iterable of byte array values to a
+   * key and an iterable of values. The values are only decoded as they are iterated over.
+   *
+   * @param keyCoder   Coder to deserialize keys.
+   * @param valueCoder Coder to deserialize values.
+   * @param <K>        The type of the key being deserialized.
+   * @param <V>        The type of the value being deserialized.
+   * @return A function that accepts a pair of byte arrays and returns a key-value pair.
+   */
+  static <K, V> PairFunction<Tuple2<ByteArray, Iterable<byte[]>>, K, Iterable<V>>
+      fromByteFunctionIterable(final Coder<K> keyCoder, final Coder<V> valueCoder) {
+    return new PairFunction<Tuple2<ByteArray, Iterable<byte[]>>, K, Iterable<V>>() {
+      @Override
+      public Tuple2<K, Iterable<V>> call(Tuple2<ByteArray, Iterable<byte[]>> tuple) {
+        Iterable<V> values = Iterables.transform(tuple._2(),
+            new com.google.common.base.Function<byte[], V>() {
+              @Override
+              public V apply(byte[] bytes) {
+                return fromByteArray(bytes, valueCoder);
+              }
+            });
+        return new Tuple2<>(fromByteArray(tuple._1().getValue(), keyCoder), values);
+      }
+    };
+  }
+
+  /**
+   * A function wrapper for encoding a partition into blocks of about a megabyte, each holding
+   * the nested encodings of consecutive elements. The partition is encoded a block at a time.
+   *
+   * @param coder Coder to serialize with.
+   * @param <T>   The type of the objects being serialized.
+   * @return A function that accepts a partition and returns its encoded blocks.
+   */
+  static <T> FlatMapFunction<Iterator<T>, byte[]> toBlocksFunction(final Coder<T> coder) {
+    return new FlatMapFunction<Iterator<T>, byte[]>() {
+      @Override
+      public Iterable<byte[]> call(final Iterator<T> elements) {
+        return new Iterable<byte[]>() {
+          @Override
+          public Iterator<byte[]> iterator() {
+            return toBlocks(elements, coder, BLOCK_SIZE, Integer.MAX_VALUE);
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Encodes elements into blocks, each holding the nested encodings of consecutive elements, as
+   * the blocks are iterated over.
+   *
+   * @param elements         Elements to serialize.
+   * @param coder            Coder to serialize with.
+   * @param maxBlockBytes    Size after which a block is complete.
+   * @param maxBlockElements Maximum number of elements in a block.
+   * @param <T>              The type of the objects being serialized.
+   * @return An iterator over the encoded blocks.
+   */
+  static <T> Iterator<byte[]> toBlocks(final Iterator<T> elements, final Coder<T> coder,
+      final int maxBlockBytes, final int maxBlockElements) {
+    return new AbstractIterator<byte[]>() {
+      private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+
+      @Override
+      protected byte[] computeNext() {
+        if (!elements.hasNext()) {
+          return endOfData();
+        }
+        block.reset();
+        int count = 0;
+        while (elements.hasNext() && block.size() < maxBlockBytes && count < maxBlockElements) {
+          T element = elements.next();
+          try {
+            coder.encode(element, block, new Coder.Context(false));
+          } catch (IOException e) {
+            throw new IllegalStateException("Error encoding value: " + element, e);
+          }
+          count++;
+        }
+        return block.toByteArray();
+      }
+    };
+  }
+
+  /**
+   * A function wrapper for decoding the blocks written by {@link #toBlocksFunction(Coder)}. The
+   * elements are only decoded as they are iterated over.
+   *
+   * @param coder Coder to deserialize with.
+   * @param <T>   The type of the objects being deserialized.
+   * @return A function that accepts encoded blocks and returns the elements they hold.
+   */
+  static <T> FlatMapFunction<Iterator<byte[]>, T> fromBlocksFunction(final Coder<T> coder) {
+    return new FlatMapFunction<Iterator<byte[]>, T>() {
+      @Override
+      public Iterable<T> call(final Iterator<byte[]> blocks) {
+        return new Iterable<T>() {
+          @Override
+          public Iterator<T> iterator() {
+            return fromBlocks(blocks, coder);
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Decodes the elements of blocks written by {@link #toBlocksFunction(Coder)}, as they are
+   * iterated over.
+   *
+   * @param blocks Blocks to deserialize.
+   * @param coder  Coder to deserialize with.
+   * @param <T>    The type of the objects being deserialized.
+   * @return An iterator over the elements the blocks hold.
+   */
+  static <T> Iterator<T> fromBlocks(Iterator<byte[]> blocks, final Coder<T> coder) {
+    return Iterators.concat(Iterators.transform(blocks,
+        new com.google.common.base.Function<byte[], Iterator<T>>() {
+          @Override
+          public Iterator<T> apply(byte[] block) {
+            return decodeBlock(block, coder);
+          }
+        }));
+  }
+
+  private static <T> Iterator<T> decodeBlock(byte[] block, final Coder<T> coder) {
+    final ByteArrayInputStream bais = new ByteArrayInputStream(block);
+    return new AbstractIterator<T>() {
+      @Override
+      protected T computeNext() {
+        if (bais.available() == 0) {
+          return endOfData();
+        }
+        try {
+          return coder.decode(bais, new Coder.Context(false));
+        } catch (IOException e) {
+          throw new IllegalStateException("Error decoding bytes for coder: " + coder, e);
+        }
+      }
+    };
+  }
 }
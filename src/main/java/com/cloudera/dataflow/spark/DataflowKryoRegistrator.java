@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.apache.spark.serializer.KryoRegistrator;
+
+/**
+ * Registers the types of the coder-encoded data the runner shuffles with the Kryo serializer of
+ * {@link ShuffleHelpers}. Encoded keys and values are byte arrays, which are written as-is, so
+ * Kryo adds no more than a length prefix on top of the coder encoding.
+ */
+public class DataflowKryoRegistrator implements KryoRegistrator {
+
+  @Override
+  public void registerClasses(Kryo kryo) {
+    kryo.register(byte[].class);
+    kryo.register(ByteArray.class, new ByteArraySerializer());
+  }
+
+  private static class ByteArraySerializer extends Serializer<ByteArray> {
+    @Override
+    public void write(Kryo kryo, Output output, ByteArray byteArray) {
+      byte[] value = byteArray.getValue();
+      output.writeInt(value.length, true);
+      output.writeBytes(value);
+    }
+
+    @Override
+    public ByteArray read(Kryo kryo, Input input, Class<ByteArray> type) {
+      int length = input.readInt(true);
+      return new ByteArray(input.readBytes(length));
+    }
+  }
+}
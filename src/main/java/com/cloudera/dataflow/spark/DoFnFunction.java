@@ -15,23 +15,13 @@
 
 package com.cloudera.dataflow.spark;
 
-import com.google.cloud.dataflow.sdk.options.PipelineOptions;
-import com.google.cloud.dataflow.sdk.transforms.Aggregator;
-import com.google.cloud.dataflow.sdk.transforms.Combine;
 import com.google.cloud.dataflow.sdk.transforms.DoFn;
-import com.google.cloud.dataflow.sdk.transforms.SerializableFunction;
-import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
-import com.google.cloud.dataflow.sdk.util.AggregatorImpl;
-import com.google.cloud.dataflow.sdk.values.PCollectionView;
 import com.google.cloud.dataflow.sdk.values.TupleTag;
-import com.google.common.collect.ImmutableList;
+import org.apache.spark.Accumulator;
 import org.apache.spark.api.java.function.FlatMapFunction;
 import org.joda.time.Instant;
 
-import java.util.Collection;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -47,60 +37,46 @@ class DoFnFunction<I, O> implements FlatMapFunction<Iterator<I>, O> {
   private final DoFn<I, O> mFunction;
   private final SparkRuntimeContext mRuntimeContext;
   private final Map<TupleTag<?>, BroadcastHelper<?>> mSideInputs;
+  private final Accumulator<Long> mOutputCounter;
 
   /**
-   * @param fn         DoFunction to be wrapped.
-   * @param runtime    Runtime to apply function in.
-   * @param sideInputs Side inputs used in DoFunction.
+   * @param fn            DoFunction to be wrapped.
+   * @param runtime       Runtime to apply function in.
+   * @param sideInputs    Side inputs used in DoFunction.
+   * @param outputCounter Accumulator counting the outputs of every partition, or null.
    */
   DoFnFunction(DoFn<I, O> fn,
                SparkRuntimeContext runtime,
-               Map<TupleTag<?>, BroadcastHelper<?>> sideInputs) {
+               Map<TupleTag<?>, BroadcastHelper<?>> sideInputs,
+               Accumulator<Long> outputCounter) {
     this.mFunction = fn;
     this.mRuntimeContext = runtime;
     this.mSideInputs = sideInputs;
+    this.mOutputCounter = outputCounter;
   }
 
 
   @Override
   public Iterable<O> call(Iterator<I> iter) throws Exception {
-    ProcCtxt ctxt = new ProcCtxt(mFunction);
-    //setup
-    mFunction.startBundle(ctxt);
-    //operation
-    while (iter.hasNext()) {
-      ctxt.element = iter.next();
-      mFunction.processElement(ctxt);
-    }
-    //cleanup
-    mFunction.finishBundle(ctxt);
-    return ctxt.outputs;
+    ProcCtxt ctxt = new ProcCtxt(mFunction, mRuntimeContext, mSideInputs);
+    return ctxt.getOutputIterable(iter, mFunction);
   }
 
-  private class ProcCtxt extends DoFn<I, O>.ProcessContext {
-
-    private final List<O> outputs = new LinkedList<>();
-    private I element;
+  private class ProcCtxt extends SparkProcessContext<I, O, O> {
 
-    public ProcCtxt(DoFn<I, O> fn) {
-      fn.super();
-    }
-
-    @Override
-    public PipelineOptions getPipelineOptions() {
-      return mRuntimeContext.getPipelineOptions();
-    }
+    private final OutputBuffer<O> outputs = new OutputBuffer<>();
+    private long numOutputs;
 
-    @Override
-    public <T> T sideInput(PCollectionView<T> view) {
-      @SuppressWarnings("unchecked")
-      T value = (T) mSideInputs.get(view.getTagInternal()).getValue();
-      return value;
+    ProcCtxt(DoFn<I, O> fn, SparkRuntimeContext runtimeContext,
+        Map<TupleTag<?>, BroadcastHelper<?>> sideInputs) {
+      super(fn, runtimeContext, sideInputs);
     }
 
     @Override
-    public synchronized void output(O o) {
+    public void output(O o) {
+      assert isConfined();
       outputs.add(o);
+      numOutputs++;
     }
 
     @Override
@@ -120,42 +96,21 @@ class DoFnFunction<I, O> implements FlatMapFunction<Iterator<I>, O> {
     }
 
     @Override
-    public <AI, AA, AO> Aggregator<AI> createAggregator(
-        String named,
-        Combine.CombineFn<? super AI, AA, AO> combineFn) {
-      return mRuntimeContext.createAggregator(named, combineFn);
-    }
-
-    @Override
-    public <AI, AO> Aggregator<AI> createAggregator(
-        String named,
-        SerializableFunction<Iterable<AI>, AO> sfunc) {
-      return mRuntimeContext.createAggregator(named, sfunc);
-    }
-
-    @Override
-    public I element() {
-      return element;
-    }
-
-    @Override
-    public DoFn.KeyedState keyedState() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void outputWithTimestamp(O output, Instant timestamp) {
-      output(output);
+    protected void clearOutput() {
+      outputs.clear();
     }
 
     @Override
-    public Instant timestamp() {
-      return Instant.now();
+    protected void flushOutput() {
+      // Only partitions which are read through are counted.
+      if (mOutputCounter != null) {
+        mOutputCounter.add(numOutputs);
+      }
     }
 
     @Override
-    public Collection<? extends BoundedWindow> windows() {
-      return ImmutableList.of();
+    protected Iterator<O> getOutputIterator() {
+      return outputs;
     }
   }
 }
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.CustomCoder;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.io.ByteStreams;
+import org.apache.spark.SparkEnv;
+import org.apache.spark.util.Utils;
+import scala.Tuple2;
+
+/**
+ * A read-only map backed by a hash table over coder-encoded keys, used for map side inputs. The
+ * whole table is laid out in a single buffer, so that it's made of a handful of objects whatever
+ * the number of entries, and lookups probe the buffer in place: looking a key up only costs
+ * encoding the key and decoding the value it maps to.
+ * <p/>
+ * The table starts with the number of slots (a power of two) and of entries, followed by the
+ * slots, which hold the offset of an entry or -1, and by the entries themselves, each of which
+ * is the length-prefixed encoded key followed by the length-prefixed encoded value. Collisions
+ * are resolved by linear probing.
+ *
+ * @param <K> Key type.
+ * @param <V> Value type.
+ */
+class EncodedMap<K, V> extends AbstractMap<K, V> {
+
+  private static final int HEADER_BYTES = 8;
+  private static final int EMPTY_SLOT = -1;
+
+  private final ByteBuffer mTable;
+  private final int mNumSlots;
+  private final int mSize;
+  private final Coder<K> mKeyCoder;
+  private final Coder<V> mValueCoder;
+
+  private EncodedMap(ByteBuffer table, Coder<K> keyCoder, Coder<V> valueCoder) {
+    this.mTable = table;
+    this.mNumSlots = table.getInt(0);
+    this.mSize = table.getInt(4);
+    this.mKeyCoder = keyCoder;
+    this.mValueCoder = valueCoder;
+  }
+
+  /**
+   * Builds the table of encoded entries.
+   *
+   * @param entries    Encoded key and value of each entry.
+   * @param keyCoder   Coder the keys were encoded with, which must be deterministic.
+   * @param valueCoder Coder the values were encoded with.
+   * @throws IllegalArgumentException if the same key occurs more than once.
+   */
+  static <K, V> EncodedMap<K, V> of(List<Tuple2<ByteArray, byte[]>> entries,
+      Coder<K> keyCoder, Coder<V> valueCoder) {
+    // Keep the load factor at or below one half, so that probe sequences stay short.
+    int numSlots = Integer.highestOneBit(Math.max(1, entries.size()) * 2 - 1) << 1;
+    long size = HEADER_BYTES + 4L * numSlots;
+    for (Tuple2<ByteArray, byte[]> entry : entries) {
+      size += 8L + entry._1().getValue().length + entry._2().length;
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Side input of " + size + " bytes is too large to be "
+          + "indexed, lower the maximum side input shard size");
+    }
+    ByteBuffer table = ByteBuffer.allocate((int) size);
+    table.putInt(numSlots).putInt(entries.size());
+    for (int i = 0; i < numSlots; i++) {
+      table.putInt(EMPTY_SLOT);
+    }
+    Set<ByteArray> keys = new HashSet<>();
+    for (Tuple2<ByteArray, byte[]> entry : entries) {
+      ByteArray key = entry._1();
+      if (!keys.add(key)) {
+        throw new IllegalArgumentException("Duplicate values for key "
+            + CoderHelpers.fromByteArray(key.getValue(), keyCoder));
+      }
+      int slot = getSlot(key, numSlots);
+      while (table.getInt(slotOffset(slot)) != EMPTY_SLOT) {
+        slot = (slot + 1) & (numSlots - 1);
+      }
+      table.putInt(slotOffset(slot), table.position());
+      table.putInt(key.getValue().length).put(key.getValue());
+      table.putInt(entry._2().length).put(entry._2());
+    }
+    return new EncodedMap<>(table, keyCoder, valueCoder);
+  }
+
+  @Override
+  public V get(Object key) {
+    return getEncoded(encodeKey(key));
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return containsEncoded(encodeKey(key));
+  }
+
+  V getEncoded(ByteArray key) {
+    int offset = find(key);
+    if (offset == EMPTY_SLOT) {
+      return null;
+    }
+    int valueOffset = offset + 4 + mTable.getInt(offset);
+    return CoderHelpers.fromByteArray(readBytes(valueOffset), mValueCoder);
+  }
+
+  boolean containsEncoded(ByteArray key) {
+    return find(key) != EMPTY_SLOT;
+  }
+
+  @Override
+  public int size() {
+    return mSize;
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return new AbstractSet<Entry<K, V>>() {
+      @Override
+      public Iterator<Entry<K, V>> iterator() {
+        return new AbstractIterator<Entry<K, V>>() {
+          private int remaining = mSize;
+          private int offset = HEADER_BYTES + 4 * mNumSlots;
+
+          @Override
+          protected Entry<K, V> computeNext() {
+            if (remaining == 0) {
+              return endOfData();
+            }
+            remaining--;
+            byte[] key = readBytes(offset);
+            offset += 4 + key.length;
+            byte[] value = readBytes(offset);
+            offset += 4 + value.length;
+            return new SimpleImmutableEntry<>(CoderHelpers.fromByteArray(key, mKeyCoder),
+                CoderHelpers.fromByteArray(value, mValueCoder));
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return mSize;
+      }
+    };
+  }
+
+  /**
+   * @return The offset of the entry of the given key, or EMPTY_SLOT if there is none.
+   */
+  private int find(ByteArray key) {
+    byte[] bytes = key.getValue();
+    int slot = getSlot(key, mNumSlots);
+    while (true) {
+      int offset = mTable.getInt(slotOffset(slot));
+      if (offset == EMPTY_SLOT || keyEquals(offset, bytes)) {
+        return offset;
+      }
+      slot = (slot + 1) & (mNumSlots - 1);
+    }
+  }
+
+  private boolean keyEquals(int offset, byte[] key) {
+    if (mTable.getInt(offset) != key.length) {
+      return false;
+    }
+    for (int i = 0; i < key.length; i++) {
+      if (mTable.get(offset + 4 + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private byte[] readBytes(int offset) {
+    byte[] bytes = new byte[mTable.getInt(offset)];
+    ByteBuffer buffer = mTable.duplicate();
+    // Buffer's methods are called through Buffer, as ByteBuffer only overrides them from Java 9
+    // on, and the bytecode would then not run on earlier JVMs.
+    ((Buffer) buffer).position(offset + 4);
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private static int getSlot(ByteArray key, int numSlots) {
+    // Spread the bits of the hash code, as consecutive slots are probed on collisions.
+    int h = key.hashCode() * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (numSlots - 1);
+  }
+
+  private static int slotOffset(int slot) {
+    return HEADER_BYTES + 4 * slot;
+  }
+
+  private ByteArray encodeKey(Object key) {
+    @SuppressWarnings("unchecked")
+    K k = (K) key;
+    return new ByteArray(CoderHelpers.toByteArray(k, mKeyCoder));
+  }
+
+  /**
+   * Coder for the encoded maps, which writes out the table as it is. Tables of at least
+   * minMappedBytes are decoded into a file in one of Spark's local directories, which is memory
+   * mapped, rather than into a buffer on the heap: the table is then held in the OS page cache
+   * and doesn't add to the garbage collector's work.
+   */
+  static final class EncodedMapCoder<K, V> extends CustomCoder<EncodedMap<K, V>> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Coder<K> keyCoder;
+    private final Coder<V> valueCoder;
+    private final long minMappedBytes;
+
+    EncodedMapCoder(Coder<K> keyCoder, Coder<V> valueCoder, long minMappedBytes) {
+      this.keyCoder = keyCoder;
+      this.valueCoder = valueCoder;
+      this.minMappedBytes = minMappedBytes;
+    }
+
+    @Override
+    public void encode(EncodedMap<K, V> map, OutputStream outStream, Context context)
+        throws IOException {
+      ByteBuffer table = map.mTable.duplicate();
+      ((Buffer) table).clear();
+      DataOutputStream out = new DataOutputStream(outStream);
+      out.writeInt(table.remaining());
+      if (table.hasArray()) {
+        out.write(table.array(), table.arrayOffset(), table.remaining());
+      } else {
+        byte[] chunk = new byte[64 * 1024];
+        while (table.hasRemaining()) {
+          int length = Math.min(chunk.length, table.remaining());
+          table.get(chunk, 0, length);
+          out.write(chunk, 0, length);
+        }
+      }
+      out.flush();
+    }
+
+    @Override
+    public EncodedMap<K, V> decode(InputStream inStream, Context context) throws IOException {
+      DataInputStream in = new DataInputStream(inStream);
+      int length = in.readInt();
+      ByteBuffer table;
+      if (length >= minMappedBytes) {
+        table = map(in, length);
+      } else {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        table = ByteBuffer.wrap(bytes);
+      }
+      return new EncodedMap<>(table, keyCoder, valueCoder);
+    }
+
+    private static ByteBuffer map(InputStream in, int length) throws IOException {
+      File file = File.createTempFile("side-input-", ".idx", getLocalDir());
+      try {
+        try (OutputStream out = new FileOutputStream(file)) {
+          if (ByteStreams.copy(ByteStreams.limit(in, length), out) != length) {
+            throw new EOFException("Side input table is truncated");
+          }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+          // The mapping remains valid once the file is closed.
+          return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+      } finally {
+        // Only the mapping refers to the file from then on, its blocks are reclaimed when the
+        // buffer is garbage collected.
+        if (!file.delete()) {
+          file.deleteOnExit();
+        }
+      }
+    }
+
+    /**
+     * @return One of Spark's local directories, which are meant for such scratch files and may
+     * well be larger than the temporary directory, or the latter outside of Spark.
+     */
+    private static File getLocalDir() {
+      SparkEnv env = SparkEnv.get();
+      return new File(env == null
+          ? System.getProperty("java.io.tmpdir") : Utils.getLocalDir(env.conf()));
+    }
+  }
+}
@@ -15,11 +15,15 @@
 
 package com.cloudera.dataflow.spark;
 
+import com.cloudera.dataflow.spark.aggregators.AggregatorsMXBean;
 import com.google.cloud.dataflow.sdk.Pipeline;
 import com.google.cloud.dataflow.sdk.coders.Coder;
 import com.google.cloud.dataflow.sdk.coders.CoderRegistry;
 import com.google.cloud.dataflow.sdk.coders.IterableCoder;
+import com.google.cloud.dataflow.sdk.transforms.Combine;
+import com.google.cloud.dataflow.sdk.transforms.Flatten;
 import com.google.cloud.dataflow.sdk.transforms.PTransform;
+import com.google.cloud.dataflow.sdk.transforms.ParDo;
 import com.google.cloud.dataflow.sdk.util.WindowedValue;
 import com.google.cloud.dataflow.sdk.values.PCollection;
 import com.google.cloud.dataflow.sdk.values.PCollectionView;
@@ -27,34 +31,114 @@ import com.google.cloud.dataflow.sdk.values.PInput;
 import com.google.cloud.dataflow.sdk.values.POutput;
 import com.google.cloud.dataflow.sdk.values.PValue;
 import com.google.common.base.Function;
+import com.google.common.base.Predicates;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterables;
+import org.apache.spark.Accumulator;
+import org.apache.spark.AccumulatorParam;
+import org.apache.spark.Dependency;
+import org.apache.spark.ShuffleDependency;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.rdd.RDD;
+import org.apache.spark.storage.StorageLevel;
+import scala.collection.JavaConversions;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * Evaluation context allows us to define how pipeline instructions
  */
 public class EvaluationContext implements EvaluationResult {
+  private static final Logger LOG = Logger.getLogger(EvaluationContext.class.getName());
+  private static final int METRICS_TIMEOUT_MILLIS = 10000;
+
   private final JavaSparkContext jsc;
   private final Pipeline pipeline;
+  private final SparkPipelineOptions options;
   private final SparkRuntimeContext runtime;
   private final CoderRegistry registry;
   private final Map<PValue, JavaRDDLike<?, ?>> rdds = new HashMap<>();
-  private final Set<PValue> multireads = new HashSet<>();
   private final Map<PValue, Object> pobjects = new HashMap<>();
+  private final Map<PValue, List<?>> collected = new HashMap<>();
   private final Map<PValue, Iterable<WindowedValue<?>>> pview = new HashMap<>();
+  private final Map<PValue, PTransform<?, ?>> producers = new HashMap<>();
+  private final Map<PValue, List<PTransform<?, ?>>> consumers = new HashMap<>();
+  private final Map<PValue, BroadcastHelper<?>> broadcastHelpers = new HashMap<>();
+  private final Map<PValue, BroadcastHelper<?>> sideInputs = new HashMap<>();
+  private final List<BroadcastHelper<?>> broadcasts = new ArrayList<>();
+  private final Map<JavaRDDLike<?, ?>, Set<Object>> persisted = new LinkedHashMap<>();
+  private final Set<Object> materialized = new HashSet<>();
+  private final List<PTransform<?, ?>> transforms = new ArrayList<>();
+  private final Map<PValue, Accumulator<Long>> elementCounters = new HashMap<>();
+  private final Map<PValue, Long> elementCounts = new HashMap<>();
+  private final MetricsListener metricsListener;
+  private ObjectName aggregatorsMBean;
 
   public EvaluationContext(JavaSparkContext jsc, Pipeline pipeline) {
+    this(jsc, pipeline, SparkPipelineOptionsFactory.create());
+  }
+
+  public EvaluationContext(JavaSparkContext jsc, Pipeline pipeline, SparkPipelineOptions options) {
     this.jsc = jsc;
     this.pipeline = pipeline;
+    this.options = options;
     this.registry = pipeline.getCoderRegistry();
     this.runtime = new SparkRuntimeContext(jsc, pipeline);
+    if (options.getRegisterAggregatorsMBean()) {
+      registerAggregatorsMBean();
+    }
+    if (options.getCollectMetrics()) {
+      this.metricsListener = new MetricsListener();
+      jsc.sc().addSparkListener(metricsListener);
+    } else {
+      this.metricsListener = null;
+    }
+  }
+
+  /**
+   * Exposes the aggregators over JMX until the context is closed. As the driver's accumulator is
+   * merged with the aggregators of every task as it completes, they can be watched while the
+   * pipeline is running.
+   */
+  private void registerAggregatorsMBean() {
+    try {
+      ObjectName name = new ObjectName("com.cloudera.dataflow.spark:type=Aggregators,app="
+          + ObjectName.quote(jsc.sc().applicationId()));
+      AggregatorsMXBean mbean = new AggregatorsMXBean() {
+        @Override
+        public Map<String, String> getValues() {
+          Map<String, String> values = new TreeMap<>();
+          for (Map.Entry<String, ?> e : runtime.getAggregatorValues().entrySet()) {
+            values.put(e.getKey(), String.valueOf(e.getValue()));
+          }
+          return values;
+        }
+      };
+      ManagementFactory.getPlatformMBeanServer()
+          .registerMBean(new StandardMBean(mbean, AggregatorsMXBean.class, true), name);
+      aggregatorsMBean = name;
+    } catch (JMException e) {
+      LOG.warning("Could not register the aggregators MBean: " + e);
+    }
   }
 
   JavaSparkContext getSparkContext() {
@@ -65,6 +149,10 @@ public class EvaluationContext implements EvaluationResult {
     return pipeline;
   }
 
+  SparkPipelineOptions getOptions() {
+    return options;
+  }
+
   SparkRuntimeContext getRuntimeContext() {
     return runtime;
   }
@@ -91,6 +179,58 @@ public class EvaluationContext implements EvaluationResult {
    * }
    */
 
+  /**
+   * Records the values consumed and produced by a transform which is going to be evaluated. All
+   * the transforms of the pipeline are registered before the first one is evaluated.
+   */
+  void registerTransform(PTransform<?, ?> transform) {
+    transforms.add(transform);
+    for (PValue input : pipeline.getInput(transform).expand()) {
+      addConsumer(input, transform);
+    }
+    for (PValue sideInput : getSideInputs(transform)) {
+      addConsumer(sideInput, transform);
+    }
+    for (PValue output : pipeline.getOutput(transform).expand()) {
+      producers.put(output, transform);
+    }
+  }
+
+  private void addConsumer(PValue pvalue, PTransform<?, ?> transform) {
+    List<PTransform<?, ?>> valueConsumers = consumers.get(pvalue);
+    if (valueConsumers == null) {
+      valueConsumers = new ArrayList<>();
+      consumers.put(pvalue, valueConsumers);
+    }
+    valueConsumers.add(transform);
+  }
+
+  private static List<PCollectionView<?>> getSideInputs(PTransform<?, ?> transform) {
+    List<PCollectionView<?>> sideInputs = null;
+    if (transform instanceof ParDo.Bound) {
+      sideInputs = ((ParDo.Bound<?, ?>) transform).getSideInputs();
+    } else if (transform instanceof ParDo.BoundMulti) {
+      sideInputs = ((ParDo.BoundMulti<?, ?>) transform).getSideInputs();
+    }
+    return sideInputs == null ? Collections.<PCollectionView<?>>emptyList() : sideInputs;
+  }
+
+  /**
+   * @return The transform producing the value, or null if it isn't produced by an evaluated
+   * transform.
+   */
+  PTransform<?, ?> getProducer(PValue pvalue) {
+    return producers.get(pvalue);
+  }
+
+  /**
+   * @return The evaluated transforms which consume the value.
+   */
+  List<PTransform<?, ?>> getConsumers(PValue pvalue) {
+    List<PTransform<?, ?>> valueConsumers = consumers.get(pvalue);
+    return valueConsumers == null ? Collections.<PTransform<?, ?>>emptyList() : valueConsumers;
+  }
+
   <I extends PInput> I getInput(PTransform<I, ?> transform) {
     @SuppressWarnings("unchecked")
     I input = (I) pipeline.getInput(transform);
@@ -104,7 +244,7 @@ public class EvaluationContext implements EvaluationResult {
   }
 
   void setOutputRDD(PTransform<?, ?> transform, JavaRDDLike<?, ?> rdd) {
-    rdds.put((PValue) getOutput(transform), rdd);
+    setRDD((PValue) getOutput(transform), rdd);
   }
 
   void setPView(PValue view, Iterable<WindowedValue<?>> value) {
@@ -112,18 +252,220 @@ public class EvaluationContext implements EvaluationResult {
   }
 
   JavaRDDLike<?, ?> getRDD(PValue pvalue) {
-    JavaRDDLike<?, ?> rdd = rdds.get(pvalue);
-    if (multireads.contains(pvalue)) {
-      // Ensure the RDD is marked as cached
-      rdd.rdd().cache();
+    return rdds.get(pvalue);
+  }
+
+  /**
+   * Sets the RDD of a value, which is persisted if the value is read by more than one transform,
+   * so that its lineage is only computed once.
+   */
+  void setRDD(PValue pvalue, JavaRDDLike<?, ?> rdd) {
+    // RDDs are named after the transform producing them, which identifies the transforms a
+    // Spark stage computes, both in the metrics and in Spark's UI.
+    String name = getName(pvalue);
+    rdd.rdd().setName(name);
+    if (getConsumers(pvalue).size() <= 1) {
+      rdds.put(pvalue, rdd);
+    } else if (options.getPersistEncoded() && pvalue instanceof PCollection) {
+      JavaRDDLike<?, ?> decoded = persistEncoded((PCollection<?>) pvalue, rdd);
+      decoded.rdd().setName(name);
+      rdds.put(pvalue, decoded);
     } else {
-      multireads.add(pvalue);
+      persist(rdd, Collections.singleton(pvalue));
+      rdds.put(pvalue, rdd);
     }
-    return rdd;
   }
 
-  void setRDD(PValue pvalue, JavaRDDLike<?, ?> rdd) {
-    rdds.put(pvalue, rdd);
+  private String getName(PValue pvalue) {
+    PTransform<?, ?> producer = getProducer(pvalue);
+    return producer == null ? pvalue.getName() : pipeline.getFullName(producer);
+  }
+
+  /**
+   * @return The accumulator counting the elements of a value, which the functions computing it
+   * add to once they've gone through a partition, or null if metrics aren't collected.
+   */
+  Accumulator<Long> getElementCounter(PValue pvalue) {
+    if (metricsListener == null) {
+      return null;
+    }
+    Accumulator<Long> counter = elementCounters.get(pvalue);
+    if (counter == null) {
+      counter = jsc.accumulator(0L, new LongAccumulatorParam());
+      elementCounters.put(pvalue, counter);
+    }
+    return counter;
+  }
+
+  /**
+   * Reports the number of elements of a value as that of another one, for values which are never
+   * computed on their own, such as the output of a grouping lifted into the combine reading it,
+   * which has one element per key just like the combine's output.
+   */
+  void shareElementCounter(PValue pvalue, PValue counted) {
+    Accumulator<Long> counter = getElementCounter(counted);
+    if (counter != null) {
+      elementCounters.put(pvalue, counter);
+    }
+  }
+
+  /**
+   * Called once all the transforms of the pipeline have been evaluated, to take the metrics of
+   * the jobs the pipeline ran. The listener is detached from the Spark context, as Spark doesn't
+   * allow removing it, so that jobs triggered by retrieving results, which may recompute values,
+   * aren't accounted for.
+   */
+  void finishMetrics() {
+    if (metricsListener == null) {
+      return;
+    }
+    // Spark delivers the events of the stages which have run asynchronously. The start of a job
+    // is posted when it's submitted, long before the driver sees it end, so waiting for the ends
+    // of the jobs which started covers all of them unless the listener bus falls far behind.
+    try {
+      if (!metricsListener.awaitJobs(METRICS_TIMEOUT_MILLIS)) {
+        LOG.warning("Timed out waiting for Spark's events, the metrics may be incomplete");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warning("Interrupted waiting for Spark's events, the metrics may be incomplete");
+    }
+    metricsListener.detach();
+    for (Map.Entry<PValue, Accumulator<Long>> counter : elementCounters.entrySet()) {
+      elementCounts.put(counter.getKey(), counter.getValue().value());
+    }
+  }
+
+  /**
+   * Persists the elements of a collection as blocks of coder-encoded elements, which take up a
+   * fraction of the memory of the elements themselves.
+   *
+   * @return The RDD of the elements, decoded from the persisted blocks as they are read.
+   */
+  private <T> JavaRDDLike<T, ?> persistEncoded(PCollection<T> pcollection,
+      JavaRDDLike<?, ?> rdd) {
+    @SuppressWarnings("unchecked")
+    JavaRDDLike<T, ?> elements = (JavaRDDLike<T, ?>) rdd;
+    Coder<T> coder = pcollection.getCoder();
+    JavaRDD<byte[]> blocks = elements.mapPartitions(CoderHelpers.toBlocksFunction(coder));
+    persist(blocks, Collections.singleton(pcollection));
+    return blocks.mapPartitions(CoderHelpers.fromBlocksFunction(coder));
+  }
+
+  /**
+   * Persists an RDD from which the given values are computed, at the storage level chosen for it.
+   * The RDD is unpersisted once the Spark jobs of all the sinks downstream of these values have
+   * run, which for the values nothing in the pipeline reads is when they're retrieved from the
+   * result, or when the result is closed. Until then, retrieving a value doesn't recompute what
+   * the pipeline's jobs already computed, nor update its aggregators again. It can't be
+   * unpersisted as soon as its last consumer is evaluated, since evaluating a transform only
+   * defines RDDs, which aren't computed until a job reads them.
+   */
+  void persist(JavaRDDLike<?, ?> rdd, Collection<? extends PValue> pvalues) {
+    StorageLevel level = getStorageLevel(rdd.rdd());
+    LOG.fine("Persisting RDD of " + pvalues + " at " + level.description());
+    rdd.rdd().persist(level);
+    persisted.put(rdd, getSinks(pvalues));
+  }
+
+  /**
+   * @return The configured storage level, if any. Otherwise, partitions evicted from memory are
+   * spilled to disk if recomputing them would read a shuffle again, which usually costs more
+   * than reading them back from disk, while the others are recomputed from their lineage.
+   */
+  private StorageLevel getStorageLevel(RDD<?> rdd) {
+    if (options.getStorageLevel() != null) {
+      return StorageLevel.fromString(options.getStorageLevel());
+    }
+    return readsShuffle(rdd) ? StorageLevel.MEMORY_AND_DISK() : StorageLevel.MEMORY_ONLY();
+  }
+
+  /**
+   * @return true if computing the RDD reads a shuffle, other than through a persisted RDD.
+   */
+  private static boolean readsShuffle(RDD<?> rdd) {
+    Set<RDD<?>> visited = new HashSet<>();
+    Deque<RDD<?>> pending = new ArrayDeque<>();
+    pending.push(rdd);
+    while (!pending.isEmpty()) {
+      RDD<?> next = pending.pop();
+      for (Dependency<?> dependency : JavaConversions.seqAsJavaList(next.dependencies())) {
+        if (dependency instanceof ShuffleDependency) {
+          return true;
+        }
+        RDD<?> parent = dependency.rdd();
+        if (parent.getStorageLevel().equals(StorageLevel.NONE()) && visited.add(parent)) {
+          pending.push(parent);
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return The sinks downstream of the values: the values which aren't read by any transform,
+   * which are computed when they're retrieved from the result, and the transforms which don't
+   * produce any value which is read, such as writes, which produce views, or which combine values
+   * globally; all of them run their Spark jobs when they're evaluated.
+   */
+  private Set<Object> getSinks(Collection<? extends PValue> pvalues) {
+    Set<Object> sinks = new HashSet<>();
+    Set<PValue> visited = new HashSet<>(pvalues);
+    Deque<PValue> pending = new ArrayDeque<>(pvalues);
+    while (!pending.isEmpty()) {
+      PValue pvalue = pending.pop();
+      List<PTransform<?, ?>> valueConsumers = getConsumers(pvalue);
+      if (valueConsumers.isEmpty()) {
+        sinks.add(pvalue);
+      }
+      for (PTransform<?, ?> transform : valueConsumers) {
+        if (isSink(transform)) {
+          sinks.add(transform);
+        } else {
+          for (PValue output : pipeline.getOutput(transform).expand()) {
+            if (visited.add(output)) {
+              pending.push(output);
+            }
+          }
+        }
+      }
+    }
+    return sinks;
+  }
+
+  private boolean isSink(PTransform<?, ?> transform) {
+    // Global combines compute their value on the driver when they're evaluated, so their output
+    // is never computed from their input afterwards.
+    if (transform instanceof Combine.Globally) {
+      return true;
+    }
+    Collection<? extends PValue> outputs = pipeline.getOutput(transform).expand();
+    return outputs.isEmpty()
+        || Iterables.all(outputs, Predicates.instanceOf(PCollectionView.class));
+  }
+
+  /**
+   * Called after a transform has been evaluated, to release the RDDs which are no longer needed.
+   */
+  void setEvaluated(PTransform<?, ?> transform) {
+    if (isSink(transform)) {
+      setMaterialized(transform);
+    }
+  }
+
+  private void setMaterialized(Object sink) {
+    if (!materialized.add(sink)) {
+      return;
+    }
+    Iterator<Map.Entry<JavaRDDLike<?, ?>, Set<Object>>> iter = persisted.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<JavaRDDLike<?, ?>, Set<Object>> entry = iter.next();
+      if (materialized.containsAll(entry.getValue())) {
+        LOG.fine("Unpersisting RDD " + entry.getKey().rdd().id());
+        entry.getKey().rdd().unpersist(false);
+        iter.remove();
+      }
+    }
   }
 
   JavaRDDLike<?, ?> getInputRDD(PTransform transform) {
@@ -131,11 +473,84 @@ public class EvaluationContext implements EvaluationResult {
   }
 
 
+  /**
+   * Sets the already materialized value of a side input, which is broadcast as is instead of
+   * being computed from the elements of the view.
+   */
+  <T> void setSideInput(PCollectionView<T> view, T value, Coder<T> coder) {
+    sideInputs.put(view, new BroadcastHelper<>(value, coder));
+  }
+
+  /**
+   * Records the elements of a collection which were computed on the driver, so that retrieving
+   * them doesn't run a job.
+   */
+  <T> void setCollected(PCollection<T> pcollection, List<T> elements) {
+    collected.put(pcollection, elements);
+  }
+
   <T> Iterable<WindowedValue<?>> getPCollectionView(PCollectionView<T> view) {
     Iterable<WindowedValue<?>> value = pview.get(view);
     return value;
   }
 
+  /**
+   * Returns the broadcast of a side input. The side input is materialized and broadcast the first
+   * time it is requested, and the same broadcast is shared by all the transforms consuming it.
+   */
+  BroadcastHelper<?> getBroadcastHelper(PCollectionView<?> view) {
+    BroadcastHelper<?> helper = broadcastHelpers.get(view);
+    if (helper == null) {
+      helper = sideInputs.remove(view);
+      if (helper == null) {
+        Object sideinput = view.fromIterableInternal(getPCollectionView(view));
+        Coder<Object> coder = getDefaultCoder(sideinput);
+        helper = new BroadcastHelper<>(sideinput, coder);
+      }
+      broadcast(helper);
+      broadcastHelpers.put(view, helper);
+    }
+    return helper;
+  }
+
+  /**
+   * Broadcasts a value right away, rather than when a transform consuming it is evaluated. The
+   * broadcast is released along with the side inputs.
+   */
+  <T> BroadcastHelper<T> broadcast(T value, Coder<T> coder) {
+    BroadcastHelper<T> helper = new BroadcastHelper<>(value, coder);
+    broadcast(helper);
+    return helper;
+  }
+
+  /**
+   * Ships a value to the executors as a file served from the driver's disk, which doesn't keep
+   * the value in the driver's memory the way a broadcast does. The value can only be read in
+   * tasks.
+   */
+  <T> BroadcastHelper<T> addFile(T value, Coder<T> coder) {
+    BroadcastHelper<T> helper = new BroadcastHelper<>(value, coder);
+    helper.addFile(jsc, options.getCompressSideInputs());
+    return helper;
+  }
+
+  private void broadcast(BroadcastHelper<?> helper) {
+    helper.broadcast(jsc, options.getCompressSideInputs());
+    broadcasts.add(helper);
+  }
+
+  /**
+   * Called once all the transforms of the pipeline have been evaluated, at which point the Spark
+   * jobs which eagerly consumed the side inputs (such as writes) have completed. The executors'
+   * copies of the broadcasts are dropped; the broadcasts remain valid, so that any job triggered
+   * later on, by retrieving a result, fetches them again.
+   */
+  void releaseBroadcasts() {
+    for (BroadcastHelper<?> helper : broadcasts) {
+      helper.unpersist();
+    }
+  }
+
   @Override
   public <T> T get(PValue value) {
     if (pobjects.containsKey(value)) {
@@ -143,11 +558,21 @@ public class EvaluationContext implements EvaluationResult {
       T result = (T) pobjects.get(value);
       return result;
     }
+    if (collected.containsKey(value)) {
+      @SuppressWarnings("unchecked")
+      T res = (T) Iterables.getOnlyElement(collected.get(value));
+      pobjects.put(value, res);
+      setMaterialized(value);
+      return res;
+    }
     if (rdds.containsKey(value)) {
-      JavaRDDLike<?, ?> rdd = rdds.get(value);
+      // Two elements are enough to tell whether there's a single one, and take only scans as
+      // many partitions as it needs to find them.
       @SuppressWarnings("unchecked")
-      T res = (T) Iterables.getOnlyElement(rdd.collect());
+      JavaRDDLike<T, ?> rdd = (JavaRDDLike<T, ?>) rdds.get(value);
+      T res = Iterables.getOnlyElement(rdd.take(2));
       pobjects.put(value, res);
+      setMaterialized(value);
       return res;
     }
     throw new IllegalStateException("Cannot resolve un-known PObject: " + value);
@@ -158,13 +583,63 @@ public class EvaluationContext implements EvaluationResult {
     return runtime.getAggregatorValue(named, resultType);
   }
 
+  @Override
+  public Map<String, ?> getAggregatorValues() {
+    return runtime.getAggregatorValues();
+  }
+
+  @Override
+  public Map<String, TransformMetrics> getMetrics() {
+    Map<String, TransformMetrics> metrics = new LinkedHashMap<>();
+    if (metricsListener == null) {
+      return metrics;
+    }
+    for (PTransform<?, ?> transform : transforms) {
+      String name = pipeline.getFullName(transform);
+      long elementsIn = 0;
+      for (PValue input : pipeline.getInput(transform).expand()) {
+        elementsIn += getElementCount(input);
+      }
+      long elementsOut = 0;
+      for (PValue output : pipeline.getOutput(transform).expand()) {
+        elementsOut += getElementCount(output);
+      }
+      metrics.put(name, new TransformMetrics(name, elementsIn, elementsOut,
+          metricsListener.getMetrics(name)));
+    }
+    return metrics;
+  }
+
+  private long getElementCount(PValue pvalue) {
+    Long count = elementCounts.get(pvalue);
+    if (count != null) {
+      return count;
+    }
+    // A flattened collection is the union of its inputs, which isn't computed by any function.
+    PTransform<?, ?> producer = getProducer(pvalue);
+    long flattened = 0;
+    if (producer instanceof Flatten.FlattenPCollectionList) {
+      for (PValue input : pipeline.getInput(producer).expand()) {
+        flattened += getElementCount(input);
+      }
+    }
+    return flattened;
+  }
+
   @Override
   public <T> Iterable<T> get(PCollection<T> pcollection) {
+    if (collected.containsKey(pcollection)) {
+      @SuppressWarnings("unchecked")
+      Iterable<T> elements = (Iterable<T>) collected.get(pcollection);
+      setMaterialized(pcollection);
+      return elements;
+    }
     @SuppressWarnings("unchecked")
     JavaRDDLike<T, ?> rdd = (JavaRDDLike<T, ?>) getRDD(pcollection);
     final Coder<T> coder = pcollection.getCoder();
     JavaRDDLike<byte[], ?> bytesRDD = rdd.map(CoderHelpers.toByteFunction(coder));
     List<byte[]> clientBytes = bytesRDD.collect();
+    setMaterialized(pcollection);
     return Iterables.transform(clientBytes, new Function<byte[], T>() {
       @Override
       public T apply(byte[] bytes) {
@@ -173,8 +648,95 @@ public class EvaluationContext implements EvaluationResult {
     });
   }
 
+  @Override
+  public <T> Iterable<T> getLazily(PCollection<T> pcollection) {
+    @SuppressWarnings("unchecked")
+    JavaRDDLike<T, ?> rdd = (JavaRDDLike<T, ?>) getRDD(pcollection);
+    return getLazily(rdd, pcollection.getCoder(), pcollection);
+  }
+
+  @Override
+  public <T> List<T> take(PCollection<T> pcollection, int num) {
+    @SuppressWarnings("unchecked")
+    JavaRDDLike<T, ?> rdd = (JavaRDDLike<T, ?>) getRDD(pcollection);
+    final Coder<T> coder = pcollection.getCoder();
+    List<byte[]> clientBytes = rdd.map(CoderHelpers.toByteFunction(coder)).take(num);
+    List<T> elements = new ArrayList<>(clientBytes.size());
+    for (byte[] bytes : clientBytes) {
+      elements.add(CoderHelpers.fromByteArray(bytes, coder));
+    }
+    return elements;
+  }
+
+  @Override
+  public <T> Iterable<T> sample(PCollection<T> pcollection, double fraction) {
+    @SuppressWarnings("unchecked")
+    JavaRDDLike<T, ?> rdd = (JavaRDDLike<T, ?>) getRDD(pcollection);
+    JavaRDD<T> sampled = new JavaRDD<>(rdd.rdd(), rdd.classTag()).sample(false, fraction);
+    return getLazily(sampled, pcollection.getCoder(), null);
+  }
+
+  /**
+   * Retrieves the elements of an RDD with Spark's local iterator, which runs a job per
+   * partition. Partitions are encoded into blocks on the executors, and only decoded on the
+   * driver as they're iterated over.
+   *
+   * @param sink The value which is materialized once the iteration is complete, if any.
+   */
+  private <T> Iterable<T> getLazily(final JavaRDDLike<T, ?> rdd, final Coder<T> coder,
+      final PValue sink) {
+    return new Iterable<T>() {
+      @Override
+      public Iterator<T> iterator() {
+        final Iterator<T> elements = CoderHelpers.fromBlocks(
+            rdd.mapPartitions(CoderHelpers.toBlocksFunction(coder)).toLocalIterator(), coder);
+        return new AbstractIterator<T>() {
+          @Override
+          protected T computeNext() {
+            if (elements.hasNext()) {
+              return elements.next();
+            }
+            if (sink != null) {
+              setMaterialized(sink);
+            }
+            return endOfData();
+          }
+        };
+      }
+    };
+  }
+
   @Override
   public void close() {
+    if (aggregatorsMBean != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(aggregatorsMBean);
+      } catch (JMException e) {
+        LOG.warning("Could not unregister the aggregators MBean: " + e);
+      }
+      aggregatorsMBean = null;
+    }
+    for (JavaRDDLike<?, ?> rdd : persisted.keySet()) {
+      rdd.rdd().unpersist(false);
+    }
+    persisted.clear();
     jsc.stop();
   }
+
+  private static class LongAccumulatorParam implements AccumulatorParam<Long> {
+    @Override
+    public Long addAccumulator(Long a, Long b) {
+      return a + b;
+    }
+
+    @Override
+    public Long addInPlace(Long a, Long b) {
+      return a + b;
+    }
+
+    @Override
+    public Long zero(Long initialValue) {
+      return 0L;
+    }
+  }
 }
@@ -19,6 +19,9 @@ import com.google.cloud.dataflow.sdk.PipelineResult;
 import com.google.cloud.dataflow.sdk.values.PCollection;
 import com.google.cloud.dataflow.sdk.values.PValue;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * Interface for retrieving the result(s) of running a pipeline. Allows us to translate between
  * {@code PObject<T>}s or {@code PCollection<T>}s and Ts or collections of Ts.
@@ -33,6 +36,39 @@ public interface EvaluationResult extends PipelineResult {
    */
   <T> Iterable<T> get(PCollection<T> pcollection);
 
+  /**
+   * Retrieves the results associated with the PCollection passed in one partition at a time, so
+   * that the driver only ever holds a single partition, rather than the whole collection. Each
+   * iteration over the returned iterable fetches the partitions again.
+   *
+   * @param pcollection Collection we wish to translate.
+   * @param <T>         Type of elements contained in collection.
+   * @return Natively types result associated with collection, retrieved as it's iterated over.
+   */
+  <T> Iterable<T> getLazily(PCollection<T> pcollection);
+
+  /**
+   * Retrieves the first elements of the PCollection passed in, only scanning as many partitions
+   * as needed to find them.
+   *
+   * @param pcollection Collection we wish to translate.
+   * @param num         Maximum number of elements to retrieve.
+   * @param <T>         Type of elements contained in collection.
+   * @return At most num elements of the collection.
+   */
+  <T> List<T> take(PCollection<T> pcollection, int num);
+
+  /**
+   * Retrieves a sample of the elements of the PCollection passed in, one partition at a time,
+   * as {@link #getLazily(PCollection)} does.
+   *
+   * @param pcollection Collection we wish to translate.
+   * @param fraction    Probability with which each element is included in the sample.
+   * @param <T>         Type of elements contained in collection.
+   * @return The sampled elements, retrieved as they're iterated over.
+   */
+  <T> Iterable<T> sample(PCollection<T> pcollection, double fraction);
+
   /**
    * Retrieve an object of Type T associated with the PValue passed in.
    *
@@ -52,6 +88,24 @@ public interface EvaluationResult extends PipelineResult {
    */
   <T> T getAggregatorValue(String aggName, Class<T> resultType);
 
+  /**
+   * Retrieves the current value of every aggregator. The same values are exposed over JMX while
+   * the pipeline is running, see {@link SparkPipelineOptions#getRegisterAggregatorsMBean()}.
+   *
+   * @return The value of each aggregator, by name.
+   */
+  Map<String, ?> getAggregatorValues();
+
+  /**
+   * Retrieves the execution metrics of every evaluated transform, from the Spark jobs run during
+   * the evaluation of the pipeline; the jobs run to retrieve its results aren't accounted for.
+   * See {@link TransformMetrics} for how Spark's metrics map to transforms.
+   *
+   * @return The metrics of each transform, by full name, in the order of evaluation. Empty if
+   * metrics aren't collected, see {@link SparkPipelineOptions#getCollectMetrics()}.
+   */
+  Map<String, TransformMetrics> getMetrics();
+
   /**
    * Releases any runtime resources, including distributed-execution contexts currently held by
    * this EvaluationResult; once close() has been called,
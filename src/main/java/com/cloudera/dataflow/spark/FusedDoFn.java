@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import java.util.Collection;
+
+import com.google.cloud.dataflow.sdk.options.PipelineOptions;
+import com.google.cloud.dataflow.sdk.transforms.Aggregator;
+import com.google.cloud.dataflow.sdk.transforms.Combine;
+import com.google.cloud.dataflow.sdk.transforms.DoFn;
+import com.google.cloud.dataflow.sdk.transforms.SerializableFunction;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.values.PCollectionView;
+import com.google.cloud.dataflow.sdk.values.TupleTag;
+import org.apache.spark.Accumulator;
+import org.joda.time.Instant;
+
+/**
+ * A Do function applying two Do functions in sequence, used to evaluate a chain of ParDos in a
+ * single pass over each partition. Every output of the first function is pushed straight into
+ * the second one's processElement, so no intermediate outputs are buffered in between. Longer
+ * chains are fused by nesting.
+ * <p/>
+ * The second function's bundle is started before the first one's, and finished after it, so
+ * that it sees whatever the first function outputs from its own startBundle and finishBundle.
+ * The intermediate outputs, which no RDD holds, may be counted as they're pushed through.
+ *
+ * @param <I> Input element type of the first function.
+ * @param <X> Output element type of the first function, and input type of the second one.
+ * @param <O> Output element type of the second function.
+ */
+class FusedDoFn<I, X, O> extends DoFn<I, O> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final DoFn<I, X> mFirst;
+  private final DoFn<X, O> mSecond;
+  private final Accumulator<Long> mIntermediateCounter;
+
+  private transient Context mOuter;
+  private transient Stage<I, X> mFirstStage;
+  private transient Stage<X, O> mSecondStage;
+  private transient long mIntermediates;
+
+  /**
+   * @param intermediateCounter Accumulator counting the outputs of the first function in every
+   *                            bundle, or null.
+   */
+  FusedDoFn(DoFn<I, X> first, DoFn<X, O> second, Accumulator<Long> intermediateCounter) {
+    this.mFirst = first;
+    this.mSecond = second;
+    this.mIntermediateCounter = intermediateCounter;
+  }
+
+  @Override
+  public void startBundle(Context c) throws Exception {
+    mOuter = c;
+    mIntermediates = 0;
+    mSecondStage = new Stage<X, O>(mSecond) {
+      @Override
+      public void output(O output) {
+        mOuter.output(output);
+      }
+    };
+    mFirstStage = new Stage<I, X>(mFirst) {
+      @Override
+      public void output(X output) {
+        mIntermediates++;
+        mSecondStage.element = output;
+        try {
+          mSecond.processElement(mSecondStage);
+        } catch (RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new IllegalStateException("Error processing element: " + output, e);
+        }
+      }
+    };
+    mSecond.startBundle(mSecondStage);
+    mFirst.startBundle(mFirstStage);
+  }
+
+  @Override
+  public void processElement(ProcessContext c) throws Exception {
+    mOuter = c;
+    mFirstStage.element = c.element();
+    mFirst.processElement(mFirstStage);
+  }
+
+  @Override
+  public void finishBundle(Context c) throws Exception {
+    mOuter = c;
+    mFirstStage.element = null;
+    mSecondStage.element = null;
+    mFirst.finishBundle(mFirstStage);
+    mSecond.finishBundle(mSecondStage);
+    if (mIntermediateCounter != null) {
+      mIntermediateCounter.add(mIntermediates);
+    }
+  }
+
+  private ProcessContext outerProcessContext() {
+    if (!(mOuter instanceof DoFn.ProcessContext)) {
+      throw new IllegalStateException("Not processing an element");
+    }
+    return (ProcessContext) mOuter;
+  }
+
+  /**
+   * The context one of the fused functions runs in, which passes everything but the outputs and
+   * the current element through to the context of the fused function.
+   */
+  private abstract class Stage<A, B> extends DoFn<A, B>.ProcessContext {
+
+    private A element;
+
+    Stage(DoFn<A, B> fn) {
+      fn.super();
+    }
+
+    @Override
+    public PipelineOptions getPipelineOptions() {
+      return mOuter.getPipelineOptions();
+    }
+
+    @Override
+    public void outputWithTimestamp(B output, Instant timestamp) {
+      output(output);
+    }
+
+    @Override
+    public <T> void sideOutput(TupleTag<T> tag, T output) {
+      mOuter.sideOutput(tag, output);
+    }
+
+    @Override
+    public <T> void sideOutputWithTimestamp(TupleTag<T> tag, T output, Instant timestamp) {
+      mOuter.sideOutputWithTimestamp(tag, output, timestamp);
+    }
+
+    @Override
+    public <AI, AA, AO> Aggregator<AI> createAggregator(
+        String named,
+        Combine.CombineFn<? super AI, AA, AO> combineFn) {
+      return mOuter.createAggregator(named, combineFn);
+    }
+
+    @Override
+    public <AI, AO> Aggregator<AI> createAggregator(
+        String named,
+        SerializableFunction<Iterable<AI>, AO> sfunc) {
+      return mOuter.createAggregator(named, sfunc);
+    }
+
+    @Override
+    public A element() {
+      return element;
+    }
+
+    @Override
+    public <T> T sideInput(PCollectionView<T> view) {
+      return outerProcessContext().sideInput(view);
+    }
+
+    @Override
+    public KeyedState keyedState() {
+      return outerProcessContext().keyedState();
+    }
+
+    @Override
+    public Instant timestamp() {
+      return outerProcessContext().timestamp();
+    }
+
+    @Override
+    public Collection<? extends BoundedWindow> windows() {
+      return outerProcessContext().windows();
+    }
+  }
+}
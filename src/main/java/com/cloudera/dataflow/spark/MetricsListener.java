@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerApplicationEnd;
+import org.apache.spark.scheduler.SparkListenerApplicationStart;
+import org.apache.spark.scheduler.SparkListenerBlockManagerAdded;
+import org.apache.spark.scheduler.SparkListenerBlockManagerRemoved;
+import org.apache.spark.scheduler.SparkListenerEnvironmentUpdate;
+import org.apache.spark.scheduler.SparkListenerExecutorMetricsUpdate;
+import org.apache.spark.scheduler.SparkListenerJobEnd;
+import org.apache.spark.scheduler.SparkListenerJobStart;
+import org.apache.spark.scheduler.SparkListenerStageCompleted;
+import org.apache.spark.scheduler.SparkListenerStageSubmitted;
+import org.apache.spark.scheduler.SparkListenerTaskEnd;
+import org.apache.spark.scheduler.SparkListenerTaskGettingResult;
+import org.apache.spark.scheduler.SparkListenerTaskStart;
+import org.apache.spark.scheduler.SparkListenerUnpersistRDD;
+import org.apache.spark.scheduler.StageInfo;
+import org.apache.spark.storage.RDDInfo;
+import scala.collection.Iterator;
+
+/**
+ * Sums up the metrics of the tasks of every Spark stage, and attributes them to the names of
+ * the RDDs the stage computed, which the runner names after the transforms producing them. Events
+ * are delivered by Spark's listener bus thread, and the totals read from the driver's. Once
+ * detached, the listener ignores every event, as Spark offers no way to remove it.
+ */
+class MetricsListener implements SparkListener {
+
+  private final Map<Long, TransformMetrics.StageMetrics> running = new HashMap<>();
+  private final Set<Long> completed = new HashSet<>();
+  private final Map<String, TransformMetrics.StageMetrics> byName = new HashMap<>();
+  private int jobsStarted;
+  private int jobsEnded;
+  private boolean detached;
+
+  /**
+   * Waits until the end of every job whose start was delivered has been delivered too. Spark
+   * posts the events of a stage before the end of its job, so that the stages of the jobs which
+   * have ended are all accounted for.
+   *
+   * @return False if the jobs didn't all end within the timeout.
+   */
+  synchronized boolean awaitJobs(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (jobsEnded < jobsStarted) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
+    }
+    return true;
+  }
+
+  /**
+   * Stops accounting for the events delivered from now on, keeping the metrics taken so far.
+   */
+  synchronized void detach() {
+    detached = true;
+    running.clear();
+    completed.clear();
+  }
+
+  /**
+   * @return The metrics of the stages which computed an RDD of the given name.
+   */
+  synchronized TransformMetrics.StageMetrics getMetrics(String name) {
+    TransformMetrics.StageMetrics metrics = new TransformMetrics.StageMetrics();
+    TransformMetrics.StageMetrics named = byName.get(name);
+    if (named != null) {
+      metrics.add(named);
+    }
+    return metrics;
+  }
+
+  @Override
+  public synchronized void onTaskEnd(SparkListenerTaskEnd taskEnd) {
+    TaskMetrics metrics = taskEnd.taskMetrics();
+    if (detached || metrics == null) {
+      // Failed tasks may have no metrics.
+      return;
+    }
+    if (completed.contains(key(taskEnd.stageId(), taskEnd.stageAttemptId()))) {
+      // A speculative or killed task ending after its stage, which has been accounted for.
+      return;
+    }
+    long inputBytes = metrics.inputMetrics().isDefined()
+        ? metrics.inputMetrics().get().bytesRead() : 0;
+    long shuffleReadBytes = metrics.shuffleReadMetrics().isDefined()
+        ? metrics.shuffleReadMetrics().get().remoteBytesRead() : 0;
+    long shuffleWriteBytes = metrics.shuffleWriteMetrics().isDefined()
+        ? metrics.shuffleWriteMetrics().get().shuffleBytesWritten() : 0;
+    getStage(taskEnd.stageId(), taskEnd.stageAttemptId()).addTask(metrics.executorRunTime(),
+        metrics.jvmGCTime(), inputBytes, shuffleReadBytes, shuffleWriteBytes,
+        metrics.memoryBytesSpilled(), metrics.diskBytesSpilled());
+  }
+
+  @Override
+  public synchronized void onStageCompleted(SparkListenerStageCompleted stageCompleted) {
+    if (detached) {
+      return;
+    }
+    StageInfo info = stageCompleted.stageInfo();
+    long key = key(info.stageId(), info.attemptId());
+    completed.add(key);
+    TransformMetrics.StageMetrics stage = running.remove(key);
+    if (stage == null) {
+      stage = new TransformMetrics.StageMetrics();
+    }
+    if (info.submissionTime().isDefined() && info.completionTime().isDefined()) {
+      stage.addStage((Long) info.completionTime().get() - (Long) info.submissionTime().get());
+    } else {
+      stage.addStage(0);
+    }
+    // The stage's RDDs are its last RDD and all of the ancestors it pipelines. Several of them
+    // may be named after the same transform, which only counts the stage once.
+    Set<String> names = new HashSet<>();
+    for (Iterator<RDDInfo> it = info.rddInfos().iterator(); it.hasNext();) {
+      String name = it.next().name();
+      if (name != null && names.add(name)) {
+        TransformMetrics.StageMetrics named = byName.get(name);
+        if (named == null) {
+          named = new TransformMetrics.StageMetrics();
+          byName.put(name, named);
+        }
+        named.add(stage);
+      }
+    }
+  }
+
+  private TransformMetrics.StageMetrics getStage(int stageId, int attemptId) {
+    long key = key(stageId, attemptId);
+    TransformMetrics.StageMetrics stage = running.get(key);
+    if (stage == null) {
+      stage = new TransformMetrics.StageMetrics();
+      running.put(key, stage);
+    }
+    return stage;
+  }
+
+  private static long key(int stageId, int attemptId) {
+    return ((long) stageId << 32) | (attemptId & 0xFFFFFFFFL);
+  }
+
+  @Override
+  public void onStageSubmitted(SparkListenerStageSubmitted stageSubmitted) {
+  }
+
+  @Override
+  public void onTaskStart(SparkListenerTaskStart taskStart) {
+  }
+
+  @Override
+  public void onTaskGettingResult(SparkListenerTaskGettingResult taskGettingResult) {
+  }
+
+  @Override
+  public synchronized void onJobStart(SparkListenerJobStart jobStart) {
+    jobsStarted++;
+  }
+
+  @Override
+  public synchronized void onJobEnd(SparkListenerJobEnd jobEnd) {
+    jobsEnded++;
+    notifyAll();
+  }
+
+  @Override
+  public void onEnvironmentUpdate(SparkListenerEnvironmentUpdate environmentUpdate) {
+  }
+
+  @Override
+  public void onBlockManagerAdded(SparkListenerBlockManagerAdded blockManagerAdded) {
+  }
+
+  @Override
+  public void onBlockManagerRemoved(SparkListenerBlockManagerRemoved blockManagerRemoved) {
+  }
+
+  @Override
+  public void onUnpersistRDD(SparkListenerUnpersistRDD unpersistRDD) {
+  }
+
+  @Override
+  public void onApplicationStart(SparkListenerApplicationStart applicationStart) {
+  }
+
+  @Override
+  public void onApplicationEnd(SparkListenerApplicationEnd applicationEnd) {
+  }
+
+  @Override
+  public void onExecutorMetricsUpdate(SparkListenerExecutorMetricsUpdate executorMetricsUpdate) {
+  }
+}
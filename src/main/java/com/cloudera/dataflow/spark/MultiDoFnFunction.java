@@ -15,146 +15,144 @@
 
 package com.cloudera.dataflow.spark;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
-import com.google.cloud.dataflow.sdk.options.PipelineOptions;
-import com.google.cloud.dataflow.sdk.transforms.Aggregator;
-import com.google.cloud.dataflow.sdk.transforms.Combine;
 import com.google.cloud.dataflow.sdk.transforms.DoFn;
-import com.google.cloud.dataflow.sdk.transforms.SerializableFunction;
-import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
-import com.google.cloud.dataflow.sdk.values.PCollectionView;
 import com.google.cloud.dataflow.sdk.values.TupleTag;
-import com.google.common.base.Function;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.LinkedListMultimap;
-import com.google.common.collect.Multimap;
-import org.apache.spark.api.java.function.PairFlatMapFunction;
+import org.apache.spark.Accumulator;
+import org.apache.spark.api.java.function.FlatMapFunction;
 import org.joda.time.Instant;
 import scala.Tuple2;
 
 /**
- * DoFunctions ignore side outputs. MultiDoFunctions deal with side outputs by enriching the
- * underlying data with multiple TupleTags.
+ * DoFunctions ignore side outputs. MultiDoFunctions deal with side outputs by splitting the
+ * outputs by TupleTag in a single pass: the outputs for each tag are gathered into chunks of up
+ * to {@link #CHUNK_SIZE} values, and every chunk is handed back to Spark, paired with its tag, as
+ * soon as it's full. Each output collection then only needs to skip over the chunks of the other
+ * tags rather than over every one of their values, while the partition is still streamed through
+ * the Do function, holding no more than one open chunk per tag in memory.
  *
  * @param <I> Input type for DoFunction.
  * @param <O> Output type for DoFunction.
  */
-class MultiDoFnFunction<I, O> implements PairFlatMapFunction<Iterator<I>, TupleTag<?>, Object> {
+class MultiDoFnFunction<I, O>
+    implements FlatMapFunction<Iterator<I>, Tuple2<TupleTag<?>, List<Object>>> {
   // TODO: I think implementing decoding logic will allow us to do away with having two types of
   // DoFunctions. Josh originally made these two classes in order to help ease the typing of
   // results. Correctly using coders should just fix this.
 
+  /**
+   * The largest number of values of a chunk.
+   */
+  static final int CHUNK_SIZE = 1024;
+
   private final DoFn<I, O> mFunction;
   private final SparkRuntimeContext mRuntimeContext;
   private final TupleTag<O> mMainOutputTag;
   private final Map<TupleTag<?>, BroadcastHelper<?>> mSideInputs;
+  private final Map<TupleTag<?>, Accumulator<Long>> mOutputCounters;
 
+  /**
+   * @param outputCounters Accumulators counting the outputs of every partition, by tag, which
+   *                       is empty unless metrics are collected.
+   */
   MultiDoFnFunction(
       DoFn<I, O> fn,
       SparkRuntimeContext runtimeContext,
       TupleTag<O> mainOutputTag,
-      Map<TupleTag<?>, BroadcastHelper<?>> sideInputs) {
+      Map<TupleTag<?>, BroadcastHelper<?>> sideInputs,
+      Map<TupleTag<?>, Accumulator<Long>> outputCounters) {
     this.mFunction = fn;
     this.mRuntimeContext = runtimeContext;
     this.mMainOutputTag = mainOutputTag;
     this.mSideInputs = sideInputs;
+    this.mOutputCounters = outputCounters;
   }
 
   @Override
-  public Iterable<Tuple2<TupleTag<?>, Object>> call(Iterator<I> iter) throws Exception {
-    ProcCtxt ctxt = new ProcCtxt(mFunction);
-    mFunction.startBundle(ctxt);
-    while (iter.hasNext()) {
-      ctxt.element = iter.next();
-      mFunction.processElement(ctxt);
-    }
-    mFunction.finishBundle(ctxt);
-    return Iterables.transform(ctxt.outputs.entries(),
-        new Function<Map.Entry<TupleTag<?>, Object>, Tuple2<TupleTag<?>, Object>>() {
-          @Override
-          public Tuple2<TupleTag<?>, Object> apply(Map.Entry<TupleTag<?>, Object> input) {
-            return new Tuple2<TupleTag<?>, Object>(input.getKey(), input.getValue());
-          }
-        });
+  public Iterable<Tuple2<TupleTag<?>, List<Object>>> call(Iterator<I> iter) throws Exception {
+    ProcCtxt ctxt = new ProcCtxt(mFunction, mRuntimeContext, mSideInputs);
+    return ctxt.getOutputIterable(iter, mFunction);
   }
 
-  private class ProcCtxt extends DoFn<I, O>.ProcessContext {
+  private class ProcCtxt extends SparkProcessContext<I, O, Tuple2<TupleTag<?>, List<Object>>> {
 
-    private final Multimap<TupleTag<?>, Object> outputs = LinkedListMultimap.create();
-    private I element;
+    private final Map<TupleTag<?>, List<Object>> chunks = new HashMap<>();
+    private final OutputBuffer<Tuple2<TupleTag<?>, List<Object>>> fullChunks =
+        new OutputBuffer<>();
+    private final Map<TupleTag<?>, long[]> numOutputs = new HashMap<>();
 
-    ProcCtxt(DoFn<I, O> fn) {
-      fn.super();
-    }
-
-    @Override
-    public PipelineOptions getPipelineOptions() {
-      return mRuntimeContext.getPipelineOptions();
+    ProcCtxt(DoFn<I, O> fn, SparkRuntimeContext runtimeContext,
+        Map<TupleTag<?>, BroadcastHelper<?>> sideInputs) {
+      super(fn, runtimeContext, sideInputs);
     }
 
     @Override
-    public <T> T sideInput(PCollectionView<T> view) {
-      @SuppressWarnings("unchecked")
-      T value = (T) mSideInputs.get(view.getTagInternal()).getValue();
-      return value;
+    public void output(O o) {
+      sideOutput(mMainOutputTag, o);
     }
 
     @Override
-    public synchronized void output(O o) {
-      outputs.put(mMainOutputTag, o);
-    }
-
-    @Override
-    public synchronized <T> void sideOutput(TupleTag<T> tag, T t) {
-      outputs.put(tag, t);
+    public <T> void sideOutput(TupleTag<T> tag, T t) {
+      assert isConfined();
+      List<Object> chunk = chunks.get(tag);
+      if (chunk == null) {
+        chunk = new ArrayList<>();
+        chunks.put(tag, chunk);
+      }
+      chunk.add(t);
+      if (chunk.size() == CHUNK_SIZE) {
+        count(tag, chunk.size());
+        chunks.remove(tag);
+        fullChunks.add(new Tuple2<TupleTag<?>, List<Object>>(tag, chunk));
+      }
     }
 
     @Override
     public <T> void sideOutputWithTimestamp(TupleTag<T> tupleTag, T t, Instant instant) {
-      outputs.put(tupleTag, t);
-    }
-
-    @Override
-    public <AI, AA, AO> Aggregator<AI> createAggregator(
-        String named,
-        Combine.CombineFn<? super AI, AA, AO> combineFn) {
-      return mRuntimeContext.createAggregator(named, combineFn);
-    }
-
-    @Override
-    public <AI, AO> Aggregator<AI> createAggregator(
-        String named,
-        SerializableFunction<Iterable<AI>, AO> sfunc) {
-      return mRuntimeContext.createAggregator(named, sfunc);
+      sideOutput(tupleTag, t);
     }
 
     @Override
-    public I element() {
-      return element;
+    protected void clearOutput() {
+      fullChunks.clear();
     }
 
     @Override
-    public DoFn.KeyedState keyedState() {
-      throw new UnsupportedOperationException();
+    protected void flushOutput() {
+      for (Map.Entry<TupleTag<?>, List<Object>> chunk : chunks.entrySet()) {
+        count(chunk.getKey(), chunk.getValue().size());
+        fullChunks.add(new Tuple2<TupleTag<?>, List<Object>>(chunk.getKey(), chunk.getValue()));
+      }
+      chunks.clear();
+      // Only partitions which are read through are counted.
+      for (Map.Entry<TupleTag<?>, long[]> count : numOutputs.entrySet()) {
+        Accumulator<Long> counter = mOutputCounters.get(count.getKey());
+        if (counter != null) {
+          counter.add(count.getValue()[0]);
+        }
+      }
     }
 
-    @Override
-    public void outputWithTimestamp(O output, Instant timestamp) {
-      output(output);
-    }
-
-    @Override
-    public Instant timestamp() {
-      return Instant.now();
+    private void count(TupleTag<?> tag, int chunkSize) {
+      if (mOutputCounters.isEmpty()) {
+        return;
+      }
+      long[] count = numOutputs.get(tag);
+      if (count == null) {
+        count = new long[1];
+        numOutputs.put(tag, count);
+      }
+      count[0] += chunkSize;
     }
 
     @Override
-    public Collection<? extends BoundedWindow> windows() {
-      return ImmutableList.of();
+    protected Iterator<Tuple2<TupleTag<?>, List<Object>>> getOutputIterator() {
+      return fullChunks;
     }
   }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The buffer holding the outputs of a single call to a Do function, until they're handed back
+ * to Spark. It's written and read by the task's thread only, so it isn't synchronized, and it's
+ * reused for every element of the partition: the backing array only grows to the largest number
+ * of outputs of a single call, and the buffer is its own iterator, so that buffering outputs
+ * doesn't allocate anything once the array is large enough.
+ *
+ * @param <T> Output type.
+ */
+final class OutputBuffer<T> implements Iterator<T> {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private Object[] mOutputs = new Object[INITIAL_CAPACITY];
+  private int mSize;
+  private int mNext;
+
+  void add(T output) {
+    if (mSize == mOutputs.length) {
+      mOutputs = Arrays.copyOf(mOutputs, mSize * 2);
+    }
+    mOutputs[mSize++] = output;
+  }
+
+  /**
+   * Discards the outputs, which must not be iterated over any more.
+   */
+  void clear() {
+    // Release the references to the outputs, which may be large.
+    Arrays.fill(mOutputs, 0, mSize, null);
+    mSize = 0;
+    mNext = 0;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return mNext < mSize;
+  }
+
+  @Override
+  public T next() {
+    if (mNext == mSize) {
+      throw new NoSuchElementException();
+    }
+    @SuppressWarnings("unchecked")
+    T output = (T) mOutputs[mNext++];
+    return output;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
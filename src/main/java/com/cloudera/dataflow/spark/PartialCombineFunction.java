@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.transforms.Combine;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.common.collect.AbstractIterator;
+import org.apache.spark.api.java.function.PairFlatMapFunction;
+import scala.Tuple2;
+
+/**
+ * Map-side half of a keyed combine: accumulates the values of each partition into one partial
+ * accumulator per key. Unlike the functions passed to Spark's combineByKey, this has the key at
+ * hand, so it can call into the Combine.KeyedCombineFn directly without carrying a copy of the
+ * key in every value. As when grouping, keys are compared by their encoding rather than by their
+ * equals and hashCode, so that keys such as arrays are still combined.
+ *
+ * @param <K>  Key type.
+ * @param <VI> Input value type.
+ * @param <VA> Accumulator type.
+ */
+class PartialCombineFunction<K, VI, VA>
+    implements PairFlatMapFunction<Iterator<KV<K, VI>>, K, VA> {
+
+  private final Combine.KeyedCombineFn<K, VI, VA, ?> mKeyed;
+  private final Coder<K> mKeyCoder;
+  private final int mMaxKeys;
+
+  /**
+   * @param keyed    Combine function.
+   * @param keyCoder Coder of the keys.
+   * @param maxKeys  Maximum number of keys accumulated before the partial accumulators are
+   *                 emitted, which bounds the memory used by partitions with many distinct keys.
+   */
+  PartialCombineFunction(Combine.KeyedCombineFn<K, VI, VA, ?> keyed, Coder<K> keyCoder,
+      int maxKeys) {
+    this.mKeyed = keyed;
+    this.mKeyCoder = keyCoder;
+    this.mMaxKeys = maxKeys;
+  }
+
+  @Override
+  public Iterable<Tuple2<K, VA>> call(final Iterator<KV<K, VI>> iter) {
+    return new Iterable<Tuple2<K, VA>>() {
+      @Override
+      public Iterator<Tuple2<K, VA>> iterator() {
+        return new PartialCombineIterator(iter);
+      }
+    };
+  }
+
+  private class PartialCombineIterator extends AbstractIterator<Tuple2<K, VA>> {
+
+    private final Iterator<KV<K, VI>> inputIterator;
+    // The accumulators of each encoded key, along with the first of its keys.
+    private final Map<ByteArray, KV<K, VA>> accumulators = new HashMap<>();
+    private Iterator<KV<K, VA>> outputIterator = Collections.<KV<K, VA>>emptyIterator();
+
+    PartialCombineIterator(Iterator<KV<K, VI>> inputIterator) {
+      this.inputIterator = inputIterator;
+    }
+
+    @Override
+    protected Tuple2<K, VA> computeNext() {
+      while (true) {
+        if (outputIterator.hasNext()) {
+          KV<K, VA> accumulator = outputIterator.next();
+          return new Tuple2<>(accumulator.getKey(), accumulator.getValue());
+        }
+        if (!inputIterator.hasNext()) {
+          return endOfData();
+        }
+        accumulators.clear();
+        while (inputIterator.hasNext() && accumulators.size() < mMaxKeys) {
+          KV<K, VI> kv = inputIterator.next();
+          ByteArray encodedKey = new ByteArray(CoderHelpers.toByteArray(kv.getKey(), mKeyCoder));
+          KV<K, VA> acc = accumulators.get(encodedKey);
+          if (acc == null) {
+            acc = KV.of(kv.getKey(), mKeyed.createAccumulator(kv.getKey()));
+            accumulators.put(encodedKey, acc);
+          }
+          mKeyed.addInput(acc.getKey(), acc.getValue(), kv.getValue());
+        }
+        outputIterator = accumulators.values().iterator();
+      }
+    }
+  }
+}
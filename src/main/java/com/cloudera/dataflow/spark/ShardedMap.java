@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+/**
+ * A read-only map side input which is too large to be broadcast as a single index. Its entries
+ * are hash partitioned by encoded key into shards, each of which is an {@link EncodedMap}
+ * shipped as a file served from the driver's disk. Only the handles of the shards are shipped with
+ * the tasks, and a shard is only decoded by an executor the first time a key in it is looked up,
+ * from the copy of the file the executor fetched to its local disk. Decoded shards are only held
+ * by the executor's cache of decoded side inputs, never by the map itself, so that shards which
+ * aren't being read can be evicted, and decoded again if they're needed later: neither the
+ * driver nor the executors need to hold the whole view in memory at once.
+ *
+ * @param <K> Key type.
+ * @param <V> Value type.
+ */
+class ShardedMap<K, V> extends AbstractMap<K, V> implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final List<BroadcastHelper<EncodedMap<K, V>>> mShards;
+  private final Coder<K> mKeyCoder;
+
+  ShardedMap(List<BroadcastHelper<EncodedMap<K, V>>> shards, Coder<K> keyCoder) {
+    this.mShards = shards;
+    this.mKeyCoder = keyCoder;
+  }
+
+  /**
+   * @return The shard holding the given encoded key, which matches the partition Spark's hash
+   * partitioner assigns the key to.
+   */
+  static int getShard(ByteArray key, int numShards) {
+    int mod = key.hashCode() % numShards;
+    return mod < 0 ? mod + numShards : mod;
+  }
+
+  @Override
+  public V get(Object key) {
+    ByteArray encoded = encodeKey(key);
+    return getShard(encoded).getEncoded(encoded);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    ByteArray encoded = encodeKey(key);
+    return getShard(encoded).containsEncoded(encoded);
+  }
+
+  private EncodedMap<K, V> getShard(ByteArray key) {
+    return mShards.get(getShard(key, mShards.size())).getCachedValue();
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (BroadcastHelper<EncodedMap<K, V>> shard : mShards) {
+      size += shard.getCachedValue().size();
+    }
+    return size;
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return new AbstractSet<Entry<K, V>>() {
+      @Override
+      public Iterator<Entry<K, V>> iterator() {
+        List<Iterable<Entry<K, V>>> shardEntries = Lists.newArrayList();
+        for (final BroadcastHelper<EncodedMap<K, V>> shard : mShards) {
+          // Shards are only fetched as the iteration reaches them.
+          shardEntries.add(new Iterable<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+              return shard.getCachedValue().entrySet().iterator();
+            }
+          });
+        }
+        return Iterables.concat(shardEntries).iterator();
+      }
+
+      @Override
+      public int size() {
+        return ShardedMap.this.size();
+      }
+    };
+  }
+
+  private ByteArray encodeKey(Object key) {
+    @SuppressWarnings("unchecked")
+    K k = (K) key;
+    return new ByteArray(CoderHelpers.toByteArray(k, mKeyCoder));
+  }
+}
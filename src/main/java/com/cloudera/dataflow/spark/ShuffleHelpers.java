@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.spark.Aggregator;
+import org.apache.spark.HashPartitioner;
+import org.apache.spark.Partitioner;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.rdd.ShuffledRDD;
+import org.apache.spark.serializer.KryoSerializer;
+import org.apache.spark.serializer.Serializer;
+import scala.reflect.ClassTag;
+import scala.reflect.ClassTag$;
+import scala.runtime.AbstractFunction1;
+import scala.runtime.AbstractFunction2;
+
+/**
+ * Shuffles of coder-encoded keys and values. Spark's own serializer, which is used for all the
+ * other data, is left to Java serialization, as Kryo would ignore the custom serialization of
+ * user objects; the encoded bytes are shuffled with Kryo instead, which writes them as-is.
+ */
+final class ShuffleHelpers {
+
+  private static final ClassTag<ByteArray> KEY_TAG = ClassTag$.MODULE$.apply(ByteArray.class);
+  private static final ClassTag<byte[]> VALUE_TAG = ClassTag$.MODULE$.apply(byte[].class);
+
+  private ShuffleHelpers() {
+  }
+
+  /**
+   * Groups encoded values by encoded key, into as many partitions as Spark's groupByKey would.
+   *
+   * @param rdd Encoded keys and values.
+   * @return The encoded values of every encoded key.
+   */
+  static JavaPairRDD<ByteArray, Iterable<byte[]>> groupByKey(JavaPairRDD<ByteArray, byte[]> rdd) {
+    SparkConf conf = rdd.context().getConf();
+    int numPartitions = conf.contains("spark.default.parallelism")
+        ? rdd.context().defaultParallelism() : rdd.partitions().size();
+    ShuffledRDD<ByteArray, byte[], List<byte[]>> grouped =
+        new ShuffledRDD<ByteArray, byte[], List<byte[]>>(rdd.rdd(),
+            new HashPartitioner(numPartitions))
+        .setSerializer(getSerializer(conf))
+        .setAggregator(new Aggregator<ByteArray, byte[], List<byte[]>>(
+            new CreateValues(), new AddValue(), new AddValues()))
+        .setMapSideCombine(false);
+    @SuppressWarnings("unchecked")
+    ClassTag<Iterable<byte[]>> valuesTag =
+        (ClassTag<Iterable<byte[]>>) (ClassTag<?>) ClassTag$.MODULE$.apply(Iterable.class);
+    @SuppressWarnings("unchecked")
+    ShuffledRDD<ByteArray, byte[], Iterable<byte[]>> values =
+        (ShuffledRDD<ByteArray, byte[], Iterable<byte[]>>) (ShuffledRDD<?, ?, ?>) grouped;
+    return new JavaPairRDD<>(values, KEY_TAG, valuesTag);
+  }
+
+  /**
+   * Partitions encoded keys and values.
+   *
+   * @param rdd         Encoded keys and values.
+   * @param partitioner Partitioner of the encoded keys.
+   * @return The keys and values, partitioned.
+   */
+  static JavaPairRDD<ByteArray, byte[]> partitionBy(JavaPairRDD<ByteArray, byte[]> rdd,
+      Partitioner partitioner) {
+    ShuffledRDD<ByteArray, byte[], byte[]> partitioned =
+        new ShuffledRDD<ByteArray, byte[], byte[]>(rdd.rdd(), partitioner)
+        .setSerializer(getSerializer(rdd.context().getConf()));
+    return new JavaPairRDD<>(partitioned, KEY_TAG, VALUE_TAG);
+  }
+
+  /**
+   * @return A Kryo serializer registering the runner's types, configured as the given context.
+   */
+  private static Serializer getSerializer(SparkConf conf) {
+    return new KryoSerializer(conf.clone()
+        .set("spark.kryo.registrator", DataflowKryoRegistrator.class.getName()));
+  }
+
+  private static class CreateValues extends AbstractFunction1<byte[], List<byte[]>>
+      implements Serializable {
+    @Override
+    public List<byte[]> apply(byte[] value) {
+      List<byte[]> values = new ArrayList<>();
+      values.add(value);
+      return values;
+    }
+  }
+
+  private static class AddValue extends AbstractFunction2<List<byte[]>, byte[], List<byte[]>>
+      implements Serializable {
+    @Override
+    public List<byte[]> apply(List<byte[]> values, byte[] value) {
+      values.add(value);
+      return values;
+    }
+  }
+
+  private static class AddValues
+      extends AbstractFunction2<List<byte[]>, List<byte[]>, List<byte[]>>
+      implements Serializable {
+    @Override
+    public List<byte[]> apply(List<byte[]> values, List<byte[]> others) {
+      values.addAll(others);
+      return values;
+    }
+  }
+}
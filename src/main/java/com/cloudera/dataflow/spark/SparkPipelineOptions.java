@@ -25,4 +25,89 @@ public interface SparkPipelineOptions extends PipelineOptions {
   String getSparkMaster();
 
   void setSparkMaster(String master);
+
+  @Description("The maximum encoded size, in bytes, of a map side input which is broadcast as a "
+      + "whole. Larger map side inputs are split into shards of about this size, which are "
+      + "shipped as files served from the driver's disk, and only decoded by the executors "
+      + "looking keys up in them.")
+  @Default.Long(64L * 1024 * 1024)
+  long getMaxSideInputShardBytes();
+
+  void setMaxSideInputShardBytes(long maxSideInputShardBytes);
+
+  @Description("The minimum encoded size, in bytes, of a map side input (or of a shard of one) "
+      + "which executors write to a local file and read through a memory-mapped buffer, rather "
+      + "than hold on the heap.")
+  @Default.Long(16L * 1024 * 1024)
+  long getMinMappedSideInputBytes();
+
+  void setMinMappedSideInputBytes(long minMappedSideInputBytes);
+
+  @Description("Whether side inputs are compressed as they are encoded, with the compression "
+      + "codec Spark is configured with (spark.io.compression.codec). Side inputs which are "
+      + "broadcast are left to Spark to compress when spark.broadcast.compress is true, its "
+      + "default, so that they're not compressed twice. The shards of large map side inputs, "
+      + "which are shipped as files, are compressed either way.")
+  @Default.Boolean(true)
+  boolean getCompressSideInputs();
+
+  void setCompressSideInputs(boolean compressSideInputs);
+
+  @Description("The Spark storage level the PCollections read by more than one transform are "
+      + "persisted at, e.g. MEMORY_ONLY, MEMORY_AND_DISK or MEMORY_AND_DISK_SER. When not set, "
+      + "it's chosen for each PCollection: those which would be recomputed from a shuffle if "
+      + "they were evicted from memory are spilled to disk instead, the others are only held in "
+      + "memory.")
+  String getStorageLevel();
+
+  void setStorageLevel(String storageLevel);
+
+  @Description("Whether the PCollections read by more than one transform are persisted as blocks "
+      + "of elements encoded with the PCollection's coder, which are decoded as they are read, "
+      + "rather than as Java objects.")
+  @Default.Boolean(false)
+  boolean getPersistEncoded();
+
+  void setPersistEncoded(boolean persistEncoded);
+
+  @Description("The target size, in encoded bytes, of the partitions of the PCollections created "
+      + "from in-memory elements.")
+  @Default.Integer(4 * 1024 * 1024)
+  int getCreatePartitionBytes();
+
+  void setCreatePartitionBytes(int createPartitionBytes);
+
+  @Description("The number of partitions of the PCollections created from in-memory elements "
+      + "given as a collection, which are split evenly by number of elements. Partitions are "
+      + "split further if they would exceed the target size. When not set, the number of "
+      + "partitions follows from the size of the elements, and is at least Spark's default "
+      + "parallelism.")
+  @Default.Integer(0)
+  int getCreatePartitions();
+
+  void setCreatePartitions(int createPartitions);
+
+  @Description("Whether to register an MBean exposing the current values of the aggregators "
+      + "over JMX while the pipeline is running. The MBean is registered in the platform "
+      + "MBeanServer until the EvaluationResult is closed.")
+  @Default.Boolean(false)
+  boolean getRegisterAggregatorsMBean();
+
+  void setRegisterAggregatorsMBean(boolean registerAggregatorsMBean);
+
+  @Description("Whether to collect the execution metrics of each transform: the number of "
+      + "elements it consumed and produced, and the metrics of the Spark stages it ran in, as "
+      + "taken over the Spark jobs the pipeline ran. Elements are counted with accumulators, "
+      + "so partitions which are recomputed, or whose tasks are retried, are counted again.")
+  @Default.Boolean(false)
+  boolean getCollectMetrics();
+
+  void setCollectMetrics(boolean collectMetrics);
+
+  @Description("The maximum number of distinct keys whose values each partition combines before "
+      + "they are shuffled, when combining values per key.")
+  @Default.Integer(10000)
+  int getMaxCombineKeys();
+
+  void setMaxCombineKeys(int maxCombineKeys);
 }
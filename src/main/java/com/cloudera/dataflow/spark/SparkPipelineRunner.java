@@ -23,6 +23,8 @@ import com.google.cloud.dataflow.sdk.values.PValue;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -88,8 +90,10 @@ public class SparkPipelineRunner extends PipelineRunner<EvaluationResult> {
   @Override
   public EvaluationResult run(Pipeline pipeline) {
     JavaSparkContext jsc = getContext();
-    EvaluationContext ctxt = new EvaluationContext(jsc, pipeline);
-    pipeline.traverseTopologically(new Evaluator(ctxt));
+    EvaluationContext ctxt = new EvaluationContext(jsc, pipeline, mOptions);
+    Evaluator evaluator = new Evaluator(ctxt);
+    pipeline.traverseTopologically(evaluator);
+    evaluator.evaluate();
     return ctxt;
   }
 
@@ -97,13 +101,18 @@ public class SparkPipelineRunner extends PipelineRunner<EvaluationResult> {
     SparkConf conf = new SparkConf();
     conf.setMaster(mOptions.getSparkMaster());
     conf.setAppName("spark pipeline job");
-    conf.set("sun.io.serialization.extendeddebuginfo", "true");
     return new JavaSparkContext(conf);
   }
 
+  /**
+   * Collects the transforms of the pipeline which map to a TransformEvaluator, in topological
+   * order, so that the context knows the producer and the consumers of every value before any of
+   * the transforms is evaluated.
+   */
   private static class Evaluator implements Pipeline.PipelineVisitor {
 
     private final EvaluationContext ctxt;
+    private final List<PTransform<?, ?>> transforms = new ArrayList<>();
 
     // Set upon entering a composite node which can be directly mapped to a single
     // TransformEvaluator.
@@ -161,12 +170,29 @@ public class SparkPipelineRunner extends PipelineRunner<EvaluationResult> {
       doVisitTransform(node.getTransform());
     }
 
-    private <PT extends PTransform> void doVisitTransform(PT transform) {
+    private void doVisitTransform(PTransform<?, ?> transform) {
+      ctxt.registerTransform(transform);
+      transforms.add(transform);
+    }
+
+    /**
+     * Evaluates the collected transforms, in the order they were visited.
+     */
+    void evaluate() {
+      for (PTransform<?, ?> transform : transforms) {
+        doEvaluateTransform(transform);
+      }
+      ctxt.releaseBroadcasts();
+      ctxt.finishMetrics();
+    }
+
+    private <PT extends PTransform> void doEvaluateTransform(PT transform) {
       @SuppressWarnings("unchecked")
       TransformEvaluator<PT> evaluator = (TransformEvaluator<PT>)
           TransformTranslator.getTransformEvaluator(transform.getClass());
       LOG.info("Evaluating " + transform);
       evaluator.evaluate(transform, ctxt);
+      ctxt.setEvaluated(transform);
     }
 
     @Override
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.google.cloud.dataflow.sdk.options.PipelineOptions;
+import com.google.cloud.dataflow.sdk.transforms.Aggregator;
+import com.google.cloud.dataflow.sdk.transforms.Combine;
+import com.google.cloud.dataflow.sdk.transforms.DoFn;
+import com.google.cloud.dataflow.sdk.transforms.SerializableFunction;
+import com.google.cloud.dataflow.sdk.transforms.windowing.BoundedWindow;
+import com.google.cloud.dataflow.sdk.values.PCollectionView;
+import com.google.cloud.dataflow.sdk.values.TupleTag;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import org.joda.time.Instant;
+
+/**
+ * The process context shared by the Spark wrappers of Dataflow's Do functions. Rather than
+ * running a whole partition through the Do function up front, the outputs are produced lazily:
+ * the input iterator is only advanced when the previously buffered outputs have been consumed,
+ * so at most the outputs of a single call to processElement are held in memory at once.
+ *
+ * @param <I> Input element type of the Do function.
+ * @param <O> Main output element type of the Do function.
+ * @param <V> Type of the values handed back to Spark.
+ */
+abstract class SparkProcessContext<I, O, V> extends DoFn<I, O>.ProcessContext {
+
+  private final SparkRuntimeContext mRuntimeContext;
+  private final Map<TupleTag<?>, BroadcastHelper<?>> mSideInputs;
+  private final Thread mThread = Thread.currentThread();
+
+  protected I element;
+
+  SparkProcessContext(DoFn<I, O> fn,
+                      SparkRuntimeContext runtime,
+                      Map<TupleTag<?>, BroadcastHelper<?>> sideInputs) {
+    fn.super();
+    this.mRuntimeContext = runtime;
+    this.mSideInputs = sideInputs;
+  }
+
+  /**
+   * Discards any buffered outputs; called before each element is processed.
+   */
+  protected abstract void clearOutput();
+
+  /**
+   * @return An iterator over the outputs buffered since the last call to clearOutput.
+   */
+  protected abstract Iterator<V> getOutputIterator();
+
+  /**
+   * Buffers any outputs held back across elements, so that they're returned by the next output
+   * iterator; called once the bundle is finished.
+   */
+  protected void flushOutput() {
+  }
+
+  /**
+   * Checks that the context is used by the thread of the task which created it, as the outputs
+   * aren't synchronized. Meant to be asserted, so that it's only checked when assertions are
+   * enabled.
+   *
+   * @return true if the context is used by the thread which created it.
+   * @throws IllegalStateException if it's used by another thread.
+   */
+  protected boolean isConfined() {
+    if (Thread.currentThread() != mThread) {
+      throw new IllegalStateException("Output from thread " + Thread.currentThread().getName()
+          + ", but the bundle is processed by thread " + mThread.getName());
+    }
+    return true;
+  }
+
+  @Override
+  public PipelineOptions getPipelineOptions() {
+    return mRuntimeContext.getPipelineOptions();
+  }
+
+  @Override
+  public <T> T sideInput(PCollectionView<T> view) {
+    @SuppressWarnings("unchecked")
+    T value = (T) mSideInputs.get(view.getTagInternal()).getValue();
+    return value;
+  }
+
+  @Override
+  public <AI, AA, AO> Aggregator<AI> createAggregator(
+      String named,
+      Combine.CombineFn<? super AI, AA, AO> combineFn) {
+    return mRuntimeContext.createAggregator(named, combineFn);
+  }
+
+  @Override
+  public <AI, AO> Aggregator<AI> createAggregator(
+      String named,
+      SerializableFunction<Iterable<AI>, AO> sfunc) {
+    return mRuntimeContext.createAggregator(named, sfunc);
+  }
+
+  @Override
+  public I element() {
+    return element;
+  }
+
+  @Override
+  public DoFn.KeyedState keyedState() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void outputWithTimestamp(O output, Instant timestamp) {
+    output(output);
+  }
+
+  @Override
+  public Instant timestamp() {
+    return Instant.now();
+  }
+
+  @Override
+  public Collection<? extends BoundedWindow> windows() {
+    return ImmutableList.of();
+  }
+
+  /**
+   * Starts the bundle and returns an iterable whose (single) iterator pulls elements from the
+   * input iterator on demand, finishing the bundle once the input is exhausted.
+   *
+   * @param iter Partition iterator to process.
+   * @param fn   Do function to apply, which must be the function this context was created for.
+   * @return The outputs of the Do function over the whole partition.
+   * @throws Exception if starting the bundle fails.
+   */
+  Iterable<V> getOutputIterable(final Iterator<I> iter, final DoFn<I, O> fn) throws Exception {
+    fn.startBundle(this);
+    return new Iterable<V>() {
+      @Override
+      public Iterator<V> iterator() {
+        return new ProcCtxtIterator(iter, fn);
+      }
+    };
+  }
+
+  private class ProcCtxtIterator extends AbstractIterator<V> {
+
+    private final Iterator<I> inputIterator;
+    private final DoFn<I, O> fn;
+    private Iterator<V> outputIterator;
+    private boolean calledFinish;
+
+    ProcCtxtIterator(Iterator<I> inputIterator, DoFn<I, O> fn) {
+      this.inputIterator = inputIterator;
+      this.fn = fn;
+      this.outputIterator = getOutputIterator();
+    }
+
+    @Override
+    protected V computeNext() {
+      // Each call to processElement may produce zero, one or more outputs. The output buffer is
+      // cleared before every call, so it only ever holds the outputs of a single element (or of
+      // finishBundle), never those of the whole partition.
+      while (true) {
+        if (outputIterator.hasNext()) {
+          return outputIterator.next();
+        }
+        clearOutput();
+        if (inputIterator.hasNext()) {
+          element = inputIterator.next();
+          try {
+            fn.processElement(SparkProcessContext.this);
+          } catch (Exception e) {
+            throw new IllegalStateException("Error processing element: " + element, e);
+          }
+        } else if (!calledFinish) {
+          calledFinish = true;
+          element = null;
+          try {
+            fn.finishBundle(SparkProcessContext.this);
+          } catch (Exception e) {
+            throw new IllegalStateException("Error finishing bundle", e);
+          }
+          flushOutput();
+        } else {
+          return endOfData();
+        }
+        outputIterator = getOutputIterator();
+      }
+    }
+  }
+}
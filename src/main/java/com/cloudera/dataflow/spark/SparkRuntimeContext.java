@@ -40,6 +40,11 @@ import com.cloudera.dataflow.spark.aggregators.NamedAggregators;
 /**
  * The SparkRuntimeContext allows us to define useful features on the client side before our
  * data flow program is launched.
+ * <p/>
+ * The context is shipped with the functions of every task, and each task deserializes its own
+ * copy, so the aggregators created by a task are cells of its own: they're updated by the task's
+ * thread only, without any synchronization or sharing with concurrent tasks, and their states
+ * are merged into the driver's accumulator by Spark when the task ends.
  */
 public class SparkRuntimeContext implements Serializable {
   /**
@@ -47,9 +52,11 @@ public class SparkRuntimeContext implements Serializable {
    */
   private final Accumulator<NamedAggregators> accum;
   /**
-   * Map fo names to dataflow aggregators.
+   * Map of names to the dataflow aggregators created by the current task. It isn't serialized,
+   * so that tasks never share the states of aggregators created elsewhere, which wouldn't be
+   * registered with their accumulator.
    */
-  private final Map<String, Aggregator<?>> aggregators = new HashMap<>();
+  private transient Map<String, Aggregator<?>> aggregators;
   private transient CoderRegistry coderRegistry;
 
   SparkRuntimeContext(JavaSparkContext jsc, Pipeline pipeline) {
@@ -68,6 +75,16 @@ public class SparkRuntimeContext implements Serializable {
     return accum.value().getValue(aggregatorName, typeClass);
   }
 
+  /**
+   * Retrieves the current value of every aggregator. On the driver, the values reflect all the
+   * tasks which have completed so far, so they can be polled while the pipeline is running.
+   *
+   * @return The value of each aggregator, by name.
+   */
+  public Map<String, ?> getAggregatorValues() {
+    return accum.value().getValues();
+  }
+
   public synchronized PipelineOptions getPipelineOptions() {
     //TODO: Support this.
     throw new UnsupportedOperationException("getPipelineOptions is not yet supported.");
@@ -86,13 +103,13 @@ public class SparkRuntimeContext implements Serializable {
       String named,
       SerializableFunction<Iterable<In>, Out> sfunc) {
     @SuppressWarnings("unchecked")
-    Aggregator<In> aggregator = (Aggregator<In>) aggregators.get(named);
+    Aggregator<In> aggregator = (Aggregator<In>) getAggregators().get(named);
     if (aggregator == null) {
       NamedAggregators.SerFunctionState<In, Out> state = new NamedAggregators
           .SerFunctionState<>(sfunc);
       accum.add(new NamedAggregators(named, state));
       aggregator = new SparkAggregator<>(state);
-      aggregators.put(named, aggregator);
+      getAggregators().put(named, aggregator);
     }
     return aggregator;
   }
@@ -110,18 +127,31 @@ public class SparkRuntimeContext implements Serializable {
       String named,
       Combine.CombineFn<? super In, Inter, Out> combineFn) {
     @SuppressWarnings("unchecked")
-    Aggregator<In> aggregator = (Aggregator<In>) aggregators.get(named);
+    Aggregator<In> aggregator = (Aggregator<In>) getAggregators().get(named);
     if (aggregator == null) {
       @SuppressWarnings("unchecked")
-      NamedAggregators.CombineFunctionState<In, Inter, Out> state = new NamedAggregators
-          .CombineFunctionState<>((Combine.CombineFn<In, Inter, Out>) combineFn, (Coder<In>) getCoder(combineFn), this);
+      NamedAggregators.State<In, ?, ?> state =
+          (NamedAggregators.State<In, ?, ?>) getNumericState(combineFn);
+      if (state == null) {
+        Coder<In> inputCoder = getInputCoder(combineFn);
+        @SuppressWarnings("unchecked")
+        Combine.CombineFn<In, Inter, Out> fn = (Combine.CombineFn<In, Inter, Out>) combineFn;
+        state = new NamedAggregators.CombineFunctionState<>(fn, inputCoder, this);
+      }
       accum.add(new NamedAggregators(named, state));
       aggregator = new SparkAggregator<>(state);
-      aggregators.put(named, aggregator);
+      getAggregators().put(named, aggregator);
     }
     return aggregator;
   }
 
+  private Map<String, Aggregator<?>> getAggregators() {
+    if (aggregators == null) {
+      aggregators = new HashMap<>();
+    }
+    return aggregators;
+  }
+
   public CoderRegistry getCoderRegistry() {
     if (coderRegistry == null) {
       coderRegistry = new CoderRegistry();
@@ -130,38 +160,93 @@ public class SparkRuntimeContext implements Serializable {
     return coderRegistry;
   }
 
-  private Coder getCoder(Combine.CombineFn<?, ?, ?> combiner) {
+  /**
+   * @return A state holding the value of the standard Sum, Min or Max combiner in a primitive
+   * field, or null if the combiner isn't one of them.
+   */
+  private static NamedAggregators.State<?, ?, ?> getNumericState(
+      Combine.CombineFn<?, ?, ?> combiner) {
+    NamedAggregators.NumericOp op;
+    Class<?> type;
     if (combiner.getClass() == Sum.SumIntegerFn.class) {
-      return getCoderRegistry().getDefaultCoder(TypeToken.of(Integer.class));
+      op = NamedAggregators.NumericOp.SUM;
+      type = Integer.class;
     } else if (combiner.getClass() == Sum.SumLongFn.class) {
-      return getCoderRegistry().getDefaultCoder(TypeToken.of(Long.class));
+      op = NamedAggregators.NumericOp.SUM;
+      type = Long.class;
     } else if (combiner.getClass() == Sum.SumDoubleFn.class) {
-      return getCoderRegistry().getDefaultCoder(TypeToken.of(Double.class));
+      op = NamedAggregators.NumericOp.SUM;
+      type = Double.class;
     } else if (combiner.getClass() == Min.MinIntegerFn.class) {
-      return getCoderRegistry().getDefaultCoder(TypeToken.of(Integer.class));
+      op = NamedAggregators.NumericOp.MIN;
+      type = Integer.class;
     } else if (combiner.getClass() == Min.MinLongFn.class) {
-      return getCoderRegistry().getDefaultCoder(TypeToken.of(Long.class));
+      op = NamedAggregators.NumericOp.MIN;
+      type = Long.class;
     } else if (combiner.getClass() == Min.MinDoubleFn.class) {
-      return getCoderRegistry().getDefaultCoder(TypeToken.of(Double.class));
+      op = NamedAggregators.NumericOp.MIN;
+      type = Double.class;
     } else if (combiner.getClass() == Max.MaxIntegerFn.class) {
-      return getCoderRegistry().getDefaultCoder(TypeToken.of(Integer.class));
+      op = NamedAggregators.NumericOp.MAX;
+      type = Integer.class;
     } else if (combiner.getClass() == Max.MaxLongFn.class) {
-      return getCoderRegistry().getDefaultCoder(TypeToken.of(Long.class));
+      op = NamedAggregators.NumericOp.MAX;
+      type = Long.class;
     } else if (combiner.getClass() == Max.MaxDoubleFn.class) {
-      return getCoderRegistry().getDefaultCoder(TypeToken.of(Double.class));
+      op = NamedAggregators.NumericOp.MAX;
+      type = Double.class;
+    } else {
+      return null;
+    }
+    // Start from the combiner's own output for no inputs, e.g. Double.MAX_VALUE for MinDoubleFn.
+    Number initial = (Number) extractEmpty(combiner);
+    if (type == Integer.class) {
+      return new NamedAggregators.IntState(op, initial.intValue());
+    } else if (type == Long.class) {
+      return new NamedAggregators.LongState(op, initial.longValue());
     } else {
-      throw new IllegalArgumentException("unsupported combiner in Aggregator: "
-              + combiner.getClass().getName());
+      return new NamedAggregators.DoubleState(op, initial.doubleValue());
     }
   }
 
+  private static <A, O> O extractEmpty(Combine.CombineFn<?, A, O> combiner) {
+    return combiner.extractOutput(combiner.createAccumulator());
+  }
+
   /**
-   * Initialize spark aggregators exactly once.
+   * @return The default coder of the combiner's input type, which encodes the state of any
+   * combiner but the numeric ones, through the coder of its accumulator.
+   * @throws IllegalArgumentException If the combiner's input type can't be resolved, e.g. when
+   * it's a generic class instantiated with a type variable, or it has no default coder.
+   */
+  private <In> Coder<In> getInputCoder(Combine.CombineFn<? super In, ?, ?> combiner) {
+    TypeToken<?> inputType = TypeToken.of(combiner.getClass())
+        .resolveType(Combine.CombineFn.class.getTypeParameters()[0]);
+    Coder<?> coder = null;
+    try {
+      coder = getCoderRegistry().getDefaultCoder(inputType);
+    } catch (IllegalArgumentException e) {
+      // Reported below, with the combiner's class.
+    }
+    if (coder == null) {
+      throw new IllegalArgumentException("Unsupported combiner in aggregator: "
+          + combiner.getClass().getName() + ", no default coder for its input type "
+          + inputType);
+    }
+    @SuppressWarnings("unchecked")
+    Coder<In> inputCoder = (Coder<In>) coder;
+    return inputCoder;
+  }
+
+  /**
+   * Initialize spark aggregators exactly once. An aggregator updates the state registered with
+   * the accumulator of the task which created it, in place.
    *
    * @param <In> Type of element fed in to aggregator.
    */
   private static class SparkAggregator<In> implements Aggregator<In>, Serializable {
     private final NamedAggregators.State<In, ?, ?> state;
+    private final transient Thread thread = Thread.currentThread();
 
     SparkAggregator(NamedAggregators.State<In, ?, ?> state) {
       this.state = state;
@@ -169,7 +254,21 @@ public class SparkRuntimeContext implements Serializable {
 
     @Override
     public void addValue(In elem) {
+      assert isConfined();
       state.update(elem);
     }
+
+    /**
+     * @return true if the aggregator is updated by the thread of the task which created it.
+     * @throws IllegalStateException if it's updated by another thread.
+     */
+    private boolean isConfined() {
+      // The thread is unknown once the aggregator has been deserialized.
+      if (thread != null && Thread.currentThread() != thread) {
+        throw new IllegalStateException("Aggregator updated from thread "
+            + Thread.currentThread().getName() + ", but it belongs to thread " + thread.getName());
+      }
+      return true;
+    }
   }
 }
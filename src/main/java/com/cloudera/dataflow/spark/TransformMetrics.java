@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+/**
+ * Execution metrics of a transform of the pipeline.
+ * <p/>
+ * The metrics are taken over the Spark jobs which ran while the pipeline was evaluated; jobs
+ * triggered by retrieving results afterwards aren't accounted for. The element counts are those
+ * of the elements the functions evaluating the transforms produced: an output which was computed
+ * more than once, without being persisted, has its elements counted every time, and the
+ * elements read from text files aren't counted. The other metrics are those of the Spark stages
+ * which computed one of the transform's outputs. As a stage computes all the RDDs it pipelines,
+ * transforms evaluated in the same stage share its metrics, which mustn't be summed over
+ * transforms.
+ */
+public final class TransformMetrics {
+
+  private final String mName;
+  private final long mElementsIn;
+  private final long mElementsOut;
+  private final int mStages;
+  private final long mWallTime;
+  private final long mRunTime;
+  private final long mGcTime;
+  private final long mInputBytes;
+  private final long mShuffleReadBytes;
+  private final long mShuffleWriteBytes;
+  private final long mMemoryBytesSpilled;
+  private final long mDiskBytesSpilled;
+
+  TransformMetrics(String name, long elementsIn, long elementsOut, StageMetrics stages) {
+    this.mName = name;
+    this.mElementsIn = elementsIn;
+    this.mElementsOut = elementsOut;
+    this.mStages = stages.stages;
+    this.mWallTime = stages.wallTime;
+    this.mRunTime = stages.runTime;
+    this.mGcTime = stages.gcTime;
+    this.mInputBytes = stages.inputBytes;
+    this.mShuffleReadBytes = stages.shuffleReadBytes;
+    this.mShuffleWriteBytes = stages.shuffleWriteBytes;
+    this.mMemoryBytesSpilled = stages.memoryBytesSpilled;
+    this.mDiskBytesSpilled = stages.diskBytesSpilled;
+  }
+
+  /**
+   * @return The full name of the transform in the pipeline.
+   */
+  public String getName() {
+    return mName;
+  }
+
+  /**
+   * @return The number of elements of the transform's inputs, side inputs excluded.
+   */
+  public long getElementsIn() {
+    return mElementsIn;
+  }
+
+  /**
+   * @return The number of elements of the transform's outputs.
+   */
+  public long getElementsOut() {
+    return mElementsOut;
+  }
+
+  /**
+   * @return The number of completed Spark stages which computed the transform's outputs.
+   */
+  public int getStages() {
+    return mStages;
+  }
+
+  /**
+   * @return The time between the submission and the completion of the stages, in milliseconds.
+   */
+  public long getWallTime() {
+    return mWallTime;
+  }
+
+  /**
+   * @return The time the tasks of the stages ran on the executors, in milliseconds. Spark doesn't
+   * measure the CPU time of tasks separately.
+   */
+  public long getRunTime() {
+    return mRunTime;
+  }
+
+  /**
+   * @return The part of the run time the executors spent in garbage collection, in milliseconds.
+   */
+  public long getGcTime() {
+    return mGcTime;
+  }
+
+  /**
+   * @return The number of bytes the stages read from external storage.
+   */
+  public long getInputBytes() {
+    return mInputBytes;
+  }
+
+  /**
+   * @return The number of shuffle bytes the stages fetched from other executors.
+   */
+  public long getShuffleReadBytes() {
+    return mShuffleReadBytes;
+  }
+
+  /**
+   * @return The number of bytes the stages wrote for shuffles.
+   */
+  public long getShuffleWriteBytes() {
+    return mShuffleWriteBytes;
+  }
+
+  /**
+   * @return The in-memory size of the data the stages spilled.
+   */
+  public long getMemoryBytesSpilled() {
+    return mMemoryBytesSpilled;
+  }
+
+  /**
+   * @return The on-disk size of the data the stages spilled.
+   */
+  public long getDiskBytesSpilled() {
+    return mDiskBytesSpilled;
+  }
+
+  @Override
+  public String toString() {
+    return mName + ": elementsIn=" + mElementsIn + ", elementsOut=" + mElementsOut
+        + ", stages=" + mStages + ", wallTime=" + mWallTime + "ms, runTime=" + mRunTime
+        + "ms, gcTime=" + mGcTime + "ms, inputBytes=" + mInputBytes
+        + ", shuffleReadBytes=" + mShuffleReadBytes + ", shuffleWriteBytes=" + mShuffleWriteBytes
+        + ", memoryBytesSpilled=" + mMemoryBytesSpilled
+        + ", diskBytesSpilled=" + mDiskBytesSpilled;
+  }
+
+  /**
+   * Metrics summed over a number of Spark stages.
+   */
+  static final class StageMetrics {
+    private int stages;
+    private long wallTime;
+    private long runTime;
+    private long gcTime;
+    private long inputBytes;
+    private long shuffleReadBytes;
+    private long shuffleWriteBytes;
+    private long memoryBytesSpilled;
+    private long diskBytesSpilled;
+
+    void addStage(long stageWallTime) {
+      stages++;
+      wallTime += stageWallTime;
+    }
+
+    void addTask(long taskRunTime, long taskGcTime, long taskInputBytes,
+        long taskShuffleReadBytes, long taskShuffleWriteBytes, long taskMemoryBytesSpilled,
+        long taskDiskBytesSpilled) {
+      runTime += taskRunTime;
+      gcTime += taskGcTime;
+      inputBytes += taskInputBytes;
+      shuffleReadBytes += taskShuffleReadBytes;
+      shuffleWriteBytes += taskShuffleWriteBytes;
+      memoryBytesSpilled += taskMemoryBytesSpilled;
+      diskBytesSpilled += taskDiskBytesSpilled;
+    }
+
+    void add(StageMetrics other) {
+      stages += other.stages;
+      wallTime += other.wallTime;
+      addTask(other.runTime, other.gcTime, other.inputBytes, other.shuffleReadBytes,
+          other.shuffleWriteBytes, other.memoryBytesSpilled, other.diskBytesSpilled);
+    }
+  }
+}
@@ -17,10 +17,14 @@ package com.cloudera.dataflow.spark;
 
 import com.google.api.client.util.Maps;
 import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.IterableCoder;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.coders.SerializableCoder;
 import com.google.cloud.dataflow.sdk.io.AvroIO;
 import com.google.cloud.dataflow.sdk.io.TextIO;
 import com.google.cloud.dataflow.sdk.transforms.Combine;
 import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.transforms.DoFn;
 import com.google.cloud.dataflow.sdk.transforms.Flatten;
 import com.google.cloud.dataflow.sdk.transforms.GroupByKey;
 import com.google.cloud.dataflow.sdk.transforms.PTransform;
@@ -32,10 +36,14 @@ import com.google.cloud.dataflow.sdk.values.PCollection;
 import com.google.cloud.dataflow.sdk.values.PCollectionList;
 import com.google.cloud.dataflow.sdk.values.PCollectionTuple;
 import com.google.cloud.dataflow.sdk.values.PCollectionView;
+import com.google.cloud.dataflow.sdk.values.PValue;
 import com.google.cloud.dataflow.sdk.values.TupleTag;
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ForwardingIterator;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
 import java.io.IOException;
 import org.apache.avro.mapred.AvroKey;
 import org.apache.avro.mapreduce.AvroJob;
@@ -44,16 +52,26 @@ import org.apache.avro.mapreduce.AvroKeyOutputFormat;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.spark.Accumulator;
+import org.apache.spark.HashPartitioner;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
+import org.apache.spark.api.java.function.FlatMapFunction;
 import org.apache.spark.api.java.function.Function;
 import org.apache.spark.api.java.function.Function2;
 import org.apache.spark.api.java.function.PairFlatMapFunction;
 import org.apache.spark.api.java.function.PairFunction;
+import org.apache.spark.storage.StorageLevel;
 import scala.Tuple2;
 
+import java.io.Serializable;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -109,25 +127,65 @@ public final class TransformTranslator {
     return new TransformEvaluator<GroupByKey.GroupByKeyOnly<K, V>>() {
       @Override
       public void evaluate(GroupByKey.GroupByKeyOnly<K, V> transform, EvaluationContext context) {
+        if (isCombinedByConsumer(context.getOutput(transform), context)) {
+          // The grouped RDD is still set, in case the output is retrieved, but it's only
+          // computed then, as the consuming combine reads the ungrouped input instead.
+          LOG.fine("Lifting " + transform + " into the Combine.GroupedValues consuming it");
+        }
         @SuppressWarnings("unchecked")
         JavaRDDLike<KV<K, V>, ?> inRDD =
             (JavaRDDLike<KV<K, V>, ?>) context.getInputRDD(transform);
-        context.setOutputRDD(transform, fromPair(toPair(inRDD).groupByKey()));
+        @SuppressWarnings("unchecked")
+        KvCoder<K, V> coder = (KvCoder<K, V>) context.getInput(transform).getCoder();
+        JavaPairRDD<K, Iterable<V>> grouped =
+            groupByEncodedKey(toPair(inRDD), coder.getKeyCoder(), coder.getValueCoder());
+        Accumulator<Long> counter = context.getElementCounter(context.getOutput(transform));
+        context.setOutputRDD(transform,
+            grouped.mapPartitions(new FromPairFunction<K, Iterable<V>>(counter)));
       }
     };
   }
 
+  /**
+   * @return true if the only consumer of the value is a Combine.GroupedValues, in which case the
+   * GroupByKeyOnly producing it is evaluated together with the combine, as a Combine.PerKey.
+   */
+  private static boolean isCombinedByConsumer(PValue grouped, EvaluationContext context) {
+    List<PTransform<?, ?>> consumers = context.getConsumers(grouped);
+    return consumers.size() == 1 && consumers.get(0) instanceof Combine.GroupedValues;
+  }
+
   private static final FieldGetter GROUPED_FG = new FieldGetter(Combine.GroupedValues.class);
 
-  private static <K, VI, VO> TransformEvaluator<Combine.GroupedValues<K, VI, VO>> grouped() {
+  private static <K, VI, VA, VO> TransformEvaluator<Combine.GroupedValues<K, VI, VO>> grouped() {
     return new TransformEvaluator<Combine.GroupedValues<K, VI, VO>>() {
       @Override
       public void evaluate(Combine.GroupedValues<K, VI, VO> transform, EvaluationContext context) {
-        Combine.KeyedCombineFn<K, VI, ?, VI> keyed = GROUPED_FG.get("fn", transform);
-        @SuppressWarnings("unchecked")
-        JavaRDDLike<KV<K, Iterable<VI>>, ?> inRDD =
-            (JavaRDDLike<KV<K, Iterable<VI>>, ?>) context.getInputRDD(transform);
-        context.setOutputRDD(transform, inRDD.map(new KVFunction<>(keyed)));
+        Combine.KeyedCombineFn<K, VI, VA, VO> keyed = GROUPED_FG.get("fn", transform);
+        PValue input = (PValue) context.getInput(transform);
+        PTransform<?, ?> producer = context.getProducer(input);
+        if (producer instanceof GroupByKey.GroupByKeyOnly && isCombinedByConsumer(input, context)) {
+          // The grouping was skipped, so combine the ungrouped values by key instead, which
+          // partially combines the values before they are shuffled.
+          @SuppressWarnings("unchecked")
+          JavaRDDLike<KV<K, VI>, ?> inRdd =
+              (JavaRDDLike<KV<K, VI>, ?>) context.getInputRDD(producer);
+          @SuppressWarnings("unchecked")
+          KvCoder<K, VI> inputCoder =
+              (KvCoder<K, VI>) ((PCollection<?>) context.getInput(producer)).getCoder();
+          Accumulator<Long> counter = context.getElementCounter(context.getOutput(transform));
+          context.setOutputRDD(transform,
+              combinePerKey(inRdd, keyed, inputCoder, counter, context));
+          // The lifted grouping has as many elements as the combine has keys.
+          context.shareElementCounter(input, context.getOutput(transform));
+        } else {
+          @SuppressWarnings("unchecked")
+          JavaRDDLike<KV<K, Iterable<VI>>, ?> inRDD =
+              (JavaRDDLike<KV<K, Iterable<VI>>, ?>) context.getInputRDD(transform);
+          Accumulator<Long> counter = context.getElementCounter(context.getOutput(transform));
+          context.setOutputRDD(transform,
+              inRDD.mapPartitions(new KVFunction<>(keyed, counter)));
+        }
       }
     };
   }
@@ -138,80 +196,236 @@ public final class TransformTranslator {
     return new TransformEvaluator<Combine.PerKey<K, VI, VO>>() {
       @Override
       public void evaluate(Combine.PerKey<K, VI, VO> transform, EvaluationContext context) {
-        final Combine.KeyedCombineFn<K, VI, VA, VO> keyed =
-            COMBINE_PERKEY_FG.get("fn", transform);
+        Combine.KeyedCombineFn<K, VI, VA, VO> keyed = COMBINE_PERKEY_FG.get("fn", transform);
         @SuppressWarnings("unchecked")
         JavaRDDLike<KV<K, VI>, ?> inRdd =
             (JavaRDDLike<KV<K, VI>, ?>) context.getInputRDD(transform);
+        @SuppressWarnings("unchecked")
+        KvCoder<K, VI> inputCoder = (KvCoder<K, VI>) context.getInput(transform).getCoder();
+        Accumulator<Long> counter = context.getElementCounter(context.getOutput(transform));
+        context.setOutputRDD(transform,
+            combinePerKey(inRdd, keyed, inputCoder, counter, context));
+      }
+    };
+  }
 
-        // We need to duplicate K as both the key of the JavaPairRDD as well as inside the value,
-        // since the functions passed to combineByKey don't receive the associated key of each
-        // value, and we need to map back into methods in Combine.KeyedCombineFn, which each
-        // require the key in addition to the VI's and VA's being merged/accumulated. Once Spark
-        // provides a way to include keys in the arguments of combine/merge functions, we won't
-        // need to duplicate the keys anymore.
-        JavaPairRDD<K, KV<K, VI>> inRddDuplicatedKeyPair = inRdd.mapToPair(
-            new PairFunction<KV<K, VI>, K, KV<K, VI>>() {
-              @Override
-              public Tuple2<K, KV<K, VI>> call(KV<K, VI> kv) {
-                return new Tuple2<>(kv.getKey(), kv);
-              }
-            });
-
-        // The output of combineByKey will be "VA" (accumulator) types rather than "VO" (final
-        // output types) since Combine.CombineFn only provides ways to merge VAs, and no way
-        // to merge VOs.
-        JavaPairRDD<K, KV<K, VA>> accumulated = inRddDuplicatedKeyPair.combineByKey(
-            new Function<KV<K, VI>, KV<K, VA>>() {
-              @Override
-              public KV<K, VA> call(KV<K, VI> input) {
-                VA acc = keyed.createAccumulator(input.getKey());
-                keyed.addInput(input.getKey(), acc, input.getValue());
-                return KV.of(input.getKey(), acc);
-              }
-            },
-            new Function2<KV<K, VA>, KV<K, VI>, KV<K, VA>>() {
-              @Override
-              public KV<K, VA> call(KV<K, VA> acc, KV<K, VI> input) {
-                keyed.addInput(acc.getKey(), acc.getValue(), input.getValue());
-                return acc;
-              }
-            },
-            new Function2<KV<K, VA>, KV<K, VA>, KV<K, VA>>() {
-              @Override
-              public KV<K, VA> call(KV<K, VA> acc1, KV<K, VA> acc2) {
-                return KV.of(
-                    acc1.getKey(),
-                    keyed.mergeAccumulators(
-                        acc1.getKey(), ImmutableList.of(acc1.getValue(), acc2.getValue())));
-              }
-            });
+  private static final FieldGetter COMBINE_GLOBALLY_FG = new FieldGetter(Combine.Globally.class);
 
-        JavaPairRDD<K, VO> extracted = accumulated.mapValues(
-            new Function<KV<K, VA>, VO>() {
-              @Override
-              public VO call(KV<K, VA> acc) {
-                return keyed.extractOutput(acc.getKey(), acc.getValue());
-              }
-            });
-        context.setOutputRDD(transform, fromPair(extracted));
+  /**
+   * Unlike the other evaluators, which only define RDDs, this one starts a Spark job as the
+   * transform is evaluated, to compute the combined value on the driver. The transform is then a
+   * sink of the values it's computed from, which are unpersisted once the job has run, along
+   * with those of their other sinks, so that retrieving them doesn't compute them again.
+   */
+  private static <I, A, O> TransformEvaluator<Combine.Globally<I, O>> combineGlobally() {
+    return new TransformEvaluator<Combine.Globally<I, O>>() {
+      @Override
+      public void evaluate(Combine.Globally<I, O> transform, EvaluationContext context) {
+        final Combine.CombineFn<I, A, O> globally = COMBINE_GLOBALLY_FG.get("fn", transform);
+        boolean insertDefault = COMBINE_GLOBALLY_FG.get("insertDefault", transform);
+        @SuppressWarnings("unchecked")
+        JavaRDDLike<I, ?> inRdd = (JavaRDDLike<I, ?>) context.getInputRDD(transform);
+        // Values are combined within each partition, and the partial accumulators of the
+        // non-empty partitions are merged on the driver, all in a single job. The combined value
+        // is computed right away, so that retrieving it, or using it as a side input, doesn't
+        // take another job.
+        JavaRDD<A> partials = inRdd.mapPartitions(new FlatMapFunction<Iterator<I>, A>() {
+          @Override
+          public Iterable<A> call(Iterator<I> iter) {
+            if (!iter.hasNext()) {
+              return Collections.emptyList();
+            }
+            A acc = globally.createAccumulator();
+            while (iter.hasNext()) {
+              globally.addInput(acc, iter.next());
+            }
+            return Collections.singletonList(acc);
+          }
+        });
+        final Coder<A> accumCoder =
+            getAccumulatorCoder(globally, context.getInput(transform).getCoder(), context);
+        List<A> accumulators;
+        if (accumCoder == null) {
+          LOG.warning("Could not infer the accumulator coder of " + globally.getClass().getName() +
+              ", accumulators will be collected with the Spark serializer");
+          accumulators = partials.collect();
+        } else {
+          accumulators = Lists.transform(
+              partials.map(CoderHelpers.toByteFunction(accumCoder)).collect(),
+              new com.google.common.base.Function<byte[], A>() {
+                @Override
+                public A apply(byte[] bytes) {
+                  return CoderHelpers.fromByteArray(bytes, accumCoder);
+                }
+              });
+        }
+        List<O> output;
+        if (!accumulators.isEmpty()) {
+          output = Collections.singletonList(
+              globally.extractOutput(globally.mergeAccumulators(accumulators)));
+        } else if (insertDefault) {
+          output = Collections.singletonList(
+              globally.extractOutput(globally.createAccumulator()));
+        } else {
+          output = Collections.emptyList();
+        }
+        PCollection<O> pcollection = context.getOutput(transform);
+        Accumulator<Long> counter = context.getElementCounter(pcollection);
+        if (counter != null) {
+          counter.add((long) output.size());
+        }
+        Coder<O> coder = pcollection.getCoder();
+        JavaRDD<byte[]> rdd = context.getSparkContext().parallelize(
+            CoderHelpers.toByteArrays(output, coder), 1);
+        context.setOutputRDD(transform, rdd.map(CoderHelpers.fromByteFunction(coder)));
+        context.setCollected(pcollection, output);
       }
     };
   }
 
-  private static final class KVFunction<K, V> implements Function<KV<K, Iterable<V>>, KV<K, V>> {
-    private final Combine.KeyedCombineFn<K, V, ?, V> keyed;
+  /**
+   * @return The coder of the accumulators of the global combine function, as inferred from the
+   * pipeline's coder registry, or null if it can't be inferred.
+   */
+  private static <I, A> Coder<A> getAccumulatorCoder(
+      Combine.CombineFn<I, A, ?> globally,
+      Coder<I> inputCoder,
+      EvaluationContext context) {
+    try {
+      return globally.getAccumulatorCoder(context.getPipeline().getCoderRegistry(), inputCoder);
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      LOG.fine("Error inferring accumulator coder: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static <K, VI, VA, VO> JavaRDD<KV<K, VO>> combinePerKey(
+      JavaRDDLike<KV<K, VI>, ?> inRdd,
+      final Combine.KeyedCombineFn<K, VI, VA, VO> keyed,
+      KvCoder<K, VI> inputCoder,
+      Accumulator<Long> counter,
+      EvaluationContext context) {
+    // Values are first combined within each partition into one accumulator per key, and only
+    // these partial accumulators are shuffled. All the partial accumulators of a key are then
+    // merged with a single call to mergeAccumulators before the output is extracted.
+    JavaPairRDD<K, VA> partials = inRdd.mapPartitionsToPair(new PartialCombineFunction<>(keyed,
+        inputCoder.getKeyCoder(), context.getOptions().getMaxCombineKeys()));
+    Coder<VA> accumCoder = getAccumulatorCoder(keyed, inputCoder, context);
+    JavaPairRDD<K, Iterable<VA>> grouped;
+    if (accumCoder == null) {
+      LOG.warning("Could not infer the accumulator coder of " + keyed.getClass().getName() +
+          ", accumulators will be shuffled with the Spark serializer");
+      grouped = partials.groupByKey();
+    } else {
+      grouped = groupByEncodedKey(partials, inputCoder.getKeyCoder(), accumCoder);
+    }
+    return grouped.mapPartitions(new CountingFunction<Tuple2<K, Iterable<VA>>, KV<K, VO>>(counter) {
+      @Override
+      KV<K, VO> apply(Tuple2<K, Iterable<VA>> accs) {
+        K key = accs._1();
+        VA merged = keyed.mergeAccumulators(key, accs._2());
+        return KV.of(key, keyed.extractOutput(key, merged));
+      }
+    });
+  }
+
+  /**
+   * Groups the values of a pair RDD by key, shuffling the keys and values in their coder-encoded
+   * form, so that grouping relies on the (deterministic) key encoding rather than on the key's
+   * equals and hashCode. Keys and values are only decoded again once they have been grouped.
+   */
+  private static <K, V> JavaPairRDD<K, Iterable<V>> groupByEncodedKey(
+      JavaPairRDD<K, V> rdd, Coder<K> keyCoder, Coder<V> valueCoder) {
+    JavaPairRDD<ByteArray, byte[]> encoded =
+        rdd.mapToPair(CoderHelpers.toByteFunction(keyCoder, valueCoder));
+    return ShuffleHelpers.groupByKey(encoded)
+        .mapToPair(CoderHelpers.<K, V>fromByteFunctionIterable(keyCoder, valueCoder));
+  }
 
-    KVFunction(Combine.KeyedCombineFn<K, V, ?, V> keyed) {
+  /**
+   * @return The coder of the accumulators of the combine function, as inferred from the
+   * pipeline's coder registry, or null if it can't be inferred.
+   */
+  private static <K, VI, VA> Coder<VA> getAccumulatorCoder(
+      Combine.KeyedCombineFn<K, VI, VA, ?> keyed,
+      KvCoder<K, VI> inputCoder,
+      EvaluationContext context) {
+    try {
+      return keyed.getAccumulatorCoder(context.getPipeline().getCoderRegistry(),
+          inputCoder.getKeyCoder(), inputCoder.getValueCoder());
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      LOG.fine("Error inferring accumulator coder: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static final class KVFunction<K, VI, VO>
+      extends CountingFunction<KV<K, Iterable<VI>>, KV<K, VO>> {
+    private final Combine.KeyedCombineFn<K, VI, ?, VO> keyed;
+
+    KVFunction(Combine.KeyedCombineFn<K, VI, ?, VO> keyed, Accumulator<Long> counter) {
+      super(counter);
       this.keyed = keyed;
     }
 
     @Override
-    public KV<K, V> call(KV<K, Iterable<V>> kv) throws Exception {
+    KV<K, VO> apply(KV<K, Iterable<VI>> kv) {
       return KV.of(kv.getKey(), keyed.apply(kv.getKey(), kv.getValue()));
     }
   }
 
+  /**
+   * A function mapping each element of a partition to a single output, which counts the outputs
+   * of the partitions it goes through when it's given an accumulator, so that the element counts
+   * of the transforms it evaluates don't take another pass over their outputs.
+   */
+  private abstract static class CountingFunction<A, B> implements FlatMapFunction<Iterator<A>, B> {
+    private final Accumulator<Long> counter;
+
+    CountingFunction(Accumulator<Long> counter) {
+      this.counter = counter;
+    }
+
+    abstract B apply(A input);
+
+    @Override
+    public Iterable<B> call(final Iterator<A> iter) {
+      return new Iterable<B>() {
+        @Override
+        public Iterator<B> iterator() {
+          return new AbstractIterator<B>() {
+            private long outputs;
+
+            @Override
+            protected B computeNext() {
+              if (iter.hasNext()) {
+                outputs++;
+                return apply(iter.next());
+              }
+              // Only partitions which are read through are counted.
+              if (counter != null) {
+                counter.add(outputs);
+              }
+              return endOfData();
+            }
+          };
+        }
+      };
+    }
+  }
+
+  private static final class FromPairFunction<K, V>
+      extends CountingFunction<Tuple2<K, V>, KV<K, V>> {
+    FromPairFunction(Accumulator<Long> counter) {
+      super(counter);
+    }
+
+    @Override
+    KV<K, V> apply(Tuple2<K, V> t2) {
+      return KV.of(t2._1(), t2._2());
+    }
+  }
+
   private static <K, V> JavaPairRDD<K, V> toPair(JavaRDDLike<KV<K, V>, ?> rdd) {
     return rdd.mapToPair(new PairFunction<KV<K, V>, K, V>() {
       @Override
@@ -221,30 +435,59 @@ public final class TransformTranslator {
     });
   }
 
-  private static <K, V> JavaRDDLike<KV<K, V>, ?> fromPair(JavaPairRDD<K, V> rdd) {
-    return rdd.map(new Function<Tuple2<K, V>, KV<K, V>>() {
-      @Override
-      public KV<K, V> call(Tuple2<K, V> t2) {
-        return KV.of(t2._1(), t2._2());
-      }
-    });
-  }
-
   private static <I, O> TransformEvaluator<ParDo.Bound<I, O>> parDo() {
     return new TransformEvaluator<ParDo.Bound<I, O>>() {
       @Override
       public void evaluate(ParDo.Bound<I, O> transform, EvaluationContext context) {
-        DoFnFunction<I, O> dofn =
-            new DoFnFunction<>(transform.getFn(),
-                context.getRuntimeContext(),
-                getSideInputs(transform.getSideInputs(), context));
-        @SuppressWarnings("unchecked")
-        JavaRDDLike<I, ?> inRDD = (JavaRDDLike<I, ?>) context.getInputRDD(transform);
-        context.setOutputRDD(transform, inRDD.mapPartitions(dofn));
+        // Walk up the chain of ParDos whose outputs are only read by the next ParDo in the chain,
+        // and run all of their functions in one pass over the input of the first one. The RDDs
+        // of the intermediate outputs are still set, but are only computed if they're retrieved.
+        PTransform<?, ?> head = transform;
+        DoFn<?, O> fn = transform.getFn();
+        List<PCollectionView<?>> views = new ArrayList<>();
+        addSideInputs(views, transform.getSideInputs());
+        while (true) {
+          PValue input = (PValue) context.getInput(head);
+          PTransform<?, ?> producer = context.getProducer(input);
+          if (!(producer instanceof ParDo.Bound) || context.getConsumers(input).size() != 1) {
+            break;
+          }
+          ParDo.Bound<?, ?> upstream = (ParDo.Bound<?, ?>) producer;
+          fn = fuse(upstream.getFn(), fn, context.getElementCounter(input));
+          addSideInputs(views, upstream.getSideInputs());
+          head = upstream;
+        }
+        if (head != transform) {
+          LOG.fine("Fusing " + transform + " with the ParDos up to " + head);
+        }
+        context.setOutputRDD(transform, mapPartitions(context.getInputRDD(head), fn,
+            context.getRuntimeContext(), getSideInputs(views, context),
+            context.getElementCounter(context.getOutput(transform))));
       }
     };
   }
 
+  @SuppressWarnings("unchecked")
+  private static <I, X, O> DoFn<I, O> fuse(DoFn<I, X> first, DoFn<?, O> second,
+      Accumulator<Long> intermediateCounter) {
+    return new FusedDoFn<>(first, (DoFn<X, O>) second, intermediateCounter);
+  }
+
+  private static void addSideInputs(List<PCollectionView<?>> views,
+      List<PCollectionView<?>> sideInputs) {
+    if (sideInputs != null) {
+      views.addAll(sideInputs);
+    }
+  }
+
+  private static <I, O> JavaRDD<O> mapPartitions(JavaRDDLike<?, ?> rdd, DoFn<I, O> fn,
+      SparkRuntimeContext runtime, Map<TupleTag<?>, BroadcastHelper<?>> sideInputs,
+      Accumulator<Long> outputCounter) {
+    @SuppressWarnings("unchecked")
+    JavaRDDLike<I, ?> inRDD = (JavaRDDLike<I, ?>) rdd;
+    return inRDD.mapPartitions(new DoFnFunction<>(fn, runtime, sideInputs, outputCounter));
+  }
+
   private static final FieldGetter MULTIDO_FG = new FieldGetter(ParDo.BoundMulti.class);
 
   private static <I, O> TransformEvaluator<ParDo.BoundMulti<I, O>> multiDo() {
@@ -252,30 +495,40 @@ public final class TransformTranslator {
       @Override
       public void evaluate(ParDo.BoundMulti<I, O> transform, EvaluationContext context) {
         TupleTag<O> mainOutputTag = MULTIDO_FG.get("mainOutputTag", transform);
+        PCollectionTuple pct = context.getOutput(transform);
+        Map<TupleTag<?>, Accumulator<Long>> counters = new HashMap<>();
+        for (Map.Entry<TupleTag<?>, PCollection<?>> e : pct.getAll().entrySet()) {
+          Accumulator<Long> counter = context.getElementCounter(e.getValue());
+          if (counter != null) {
+            counters.put(e.getKey(), counter);
+          }
+        }
         MultiDoFnFunction<I, O> multifn = new MultiDoFnFunction<>(
             transform.getFn(),
             context.getRuntimeContext(),
             mainOutputTag,
-            getSideInputs(transform.getSideInputs(), context));
+            getSideInputs(transform.getSideInputs(), context),
+            counters);
 
         @SuppressWarnings("unchecked")
         JavaRDDLike<I, ?> inRDD = (JavaRDDLike<I, ?>) context.getInputRDD(transform);
-        JavaPairRDD<TupleTag<?>, Object> all = inRDD
-            .mapPartitionsToPair(multifn)
-            .cache();
-
-        PCollectionTuple pct = context.getOutput(transform);
+        // Each partition is evaluated once into chunks of outputs of a single tag, which are
+        // persisted so that every output collection only reads back the values of its own tag.
+        JavaRDD<Tuple2<TupleTag<?>, List<Object>>> all = inRDD.mapPartitions(multifn);
+
+        // The chunks are read once for each output, whether it's consumed in the pipeline or
+        // retrieved from the result, after the pipeline's jobs, such as global combines, have
+        // computed them; they remain persisted until the sinks of every output have run.
+        if (pct.getAll().size() > 1) {
+          context.persist(all, pct.getAll().values());
+        }
         for (Map.Entry<TupleTag<?>, PCollection<?>> e : pct.getAll().entrySet()) {
-          @SuppressWarnings("unchecked")
-          JavaPairRDD<TupleTag<?>, Object> filtered =
-              all.filter(new TupleTagFilter(e.getKey()));
-          context.setRDD(e.getValue(), filtered.values());
+          context.setRDD(e.getValue(), all.flatMap(new TupleTagValues(e.getKey())));
         }
       }
     };
   }
 
-
   private static <T> TransformEvaluator<TextIO.Read.Bound<T>> readText() {
     return new TransformEvaluator<TextIO.Read.Bound<T>>() {
       @Override
@@ -307,9 +560,10 @@ public final class TransformTranslator {
         JavaRDD<?> rdd = context.getSparkContext()
             .newAPIHadoopFile(pattern, AvroKeyInputFormat.class, AvroKey.class,
                 NullWritable.class, new Configuration())
-            .map(new Function<Tuple2<AvroKey, NullWritable>, Object>() {
+            .mapPartitions(new CountingFunction<Tuple2<AvroKey, NullWritable>, Object>(
+                context.getElementCounter(context.getOutput(transform))) {
               @Override
-              public Object call(Tuple2<AvroKey, NullWritable> t) throws Exception {
+              Object apply(Tuple2<AvroKey, NullWritable> t) {
                 return t._1().datum();
               }
             });
@@ -348,11 +602,48 @@ public final class TransformTranslator {
     return new TransformEvaluator<Create<T>>() {
       @Override
       public void evaluate(Create<T> transform, EvaluationContext context) {
-        Iterable<T> elems = transform.getElements();
+        final Iterable<T> elems = transform.getElements();
         Coder<T> coder = context.getOutput(transform).getCoder();
-        JavaRDD<byte[]> rdd = context.getSparkContext().parallelize(
-            CoderHelpers.toByteArrays(elems, coder));
-        context.setOutputRDD(transform, rdd.map(CoderHelpers.fromByteFunction(coder)));
+        // The elements are encoded straight into blocks of at most the configured size, each of
+        // which becomes a partition. When the elements are a collection, and so their number is
+        // known without reading them, blocks are also cut by number of elements so that there are
+        // at least as many partitions as requested or, by default, enough to keep all the cores
+        // busy even when the elements are small. Either way, the elements are only read once.
+        int numPartitions = context.getOptions().getCreatePartitions();
+        if (numPartitions <= 0) {
+          numPartitions = context.getSparkContext().defaultParallelism();
+        }
+        int maxBlockElements = Integer.MAX_VALUE;
+        if (elems instanceof Collection) {
+          int size = ((Collection<?>) elems).size();
+          maxBlockElements = Math.max(1, (size + numPartitions - 1) / numPartitions);
+        }
+        final long[] numElements = new long[1];
+        Iterator<T> counted = new ForwardingIterator<T>() {
+          private final Iterator<T> delegate = elems.iterator();
+
+          @Override
+          protected Iterator<T> delegate() {
+            return delegate;
+          }
+
+          @Override
+          public T next() {
+            numElements[0]++;
+            return super.next();
+          }
+        };
+        List<byte[]> blocks = Lists.newArrayList(CoderHelpers.toBlocks(counted, coder,
+            context.getOptions().getCreatePartitionBytes(), maxBlockElements));
+        // The elements are counted once, on the driver, however many times they're decoded.
+        Accumulator<Long> counter = context.getElementCounter(context.getOutput(transform));
+        if (counter != null) {
+          counter.add(numElements[0]);
+        }
+        JavaRDD<byte[]> rdd = context.getSparkContext()
+            .parallelize(blocks, Math.max(1, blocks.size()));
+        context.setOutputRDD(transform,
+            rdd.mapPartitions(CoderHelpers.fromBlocksFunction(coder)));
       }
     };
   }
@@ -395,6 +686,159 @@ public final class TransformTranslator {
     };
   }
 
+  private static <K, V> TransformEvaluator<View.AsMultimap<K, V>> viewAsMultimap() {
+    return new TransformEvaluator<View.AsMultimap<K, V>>() {
+      @Override
+      public void evaluate(View.AsMultimap<K, V> transform, EvaluationContext context) {
+        @SuppressWarnings("unchecked")
+        JavaRDDLike<KV<K, V>, ?> inRDD = (JavaRDDLike<KV<K, V>, ?>) context.getInputRDD(transform);
+        @SuppressWarnings("unchecked")
+        KvCoder<K, V> coder = (KvCoder<K, V>) context.getInput(transform).getCoder();
+        JavaPairRDD<K, Iterable<V>> grouped =
+            groupByEncodedKey(toPair(inRDD), coder.getKeyCoder(), coder.getValueCoder());
+        setMapSideInput(context.getOutput(transform), grouped, coder.getKeyCoder(),
+            IterableCoder.of(coder.getValueCoder()), context);
+      }
+    };
+  }
+
+  private static final FieldGetter SINGLETON_MAP_FG = new FieldGetter(View.AsSingletonMap.class);
+
+  private static <K, VI, VA, VO> TransformEvaluator<View.AsSingletonMap<K, VI, VO>>
+      viewAsSingletonMap() {
+    return new TransformEvaluator<View.AsSingletonMap<K, VI, VO>>() {
+      @Override
+      public void evaluate(View.AsSingletonMap<K, VI, VO> transform, EvaluationContext context) {
+        Combine.CombineFn<VI, VA, VO> combineFn = SINGLETON_MAP_FG.get("combineFn", transform);
+        @SuppressWarnings("unchecked")
+        JavaRDDLike<KV<K, VI>, ?> inRdd =
+            (JavaRDDLike<KV<K, VI>, ?>) context.getInputRDD(transform);
+        @SuppressWarnings("unchecked")
+        KvCoder<K, VI> inputCoder = (KvCoder<K, VI>) context.getInput(transform).getCoder();
+        Coder<VO> outputCoder = combineFn.getDefaultOutputCoder(
+            context.getPipeline().getCoderRegistry(), inputCoder.getValueCoder());
+        JavaRDD<KV<K, VO>> combined =
+            combinePerKey(inRdd, combineFn.<K>asKeyedFn(), inputCoder, null, context);
+        setMapSideInput(context.getOutput(transform), toPair(combined), inputCoder.getKeyCoder(),
+            outputCoder, context);
+      }
+    };
+  }
+
+  /**
+   * Materializes a map view as a hash index over the encoded keys, which is built from entries
+   * encoded on the cluster and broadcast as is, so that the consuming Do functions look keys up
+   * directly instead of scanning the view or rebuilding a map out of it. The view is sized by the
+   * same job which collects it, when it's small enough to be broadcast whole. Views whose encoded
+   * size exceeds the configured maximum are hash partitioned by encoded key into shards which are
+   * collected one at a time and shipped as files served from the driver's disk, so that the driver
+   * never holds the whole view, nor keeps the shards in memory once they're shipped.
+   */
+  private static <K, V> void setMapSideInput(
+      PCollectionView<Map<K, V>> view,
+      JavaPairRDD<K, V> entries,
+      Coder<K> keyCoder,
+      Coder<V> valueCoder,
+      EvaluationContext context) {
+    JavaPairRDD<ByteArray, byte[]> encoded =
+        entries.mapToPair(CoderHelpers.toByteFunction(keyCoder, valueCoder));
+    // Partitions too large to be collected with the sizes, and views too large to be collected
+    // at all, are read again.
+    encoded.persist(StorageLevel.MEMORY_AND_DISK());
+    long maxShardBytes = context.getOptions().getMaxSideInputShardBytes();
+    int numPartitions = encoded.partitions().size();
+    List<SizedPartition> sized = encoded.mapPartitionsWithIndex(
+        new SizePartition(maxShardBytes / Math.max(1, numPartitions)), false).collect();
+    long size = 0;
+    for (SizedPartition partition : sized) {
+      size += partition.size;
+    }
+    int numShards = (int) Math.min(Integer.MAX_VALUE, (size + maxShardBytes - 1) / maxShardBytes);
+    EncodedMap.EncodedMapCoder<K, V> shardCoder =
+        new EncodedMap.EncodedMapCoder<>(keyCoder, valueCoder,
+            context.getOptions().getMinMappedSideInputBytes());
+    if (numShards <= 1) {
+      List<Tuple2<ByteArray, byte[]>> collected = new ArrayList<>();
+      List<Integer> uncollected = new ArrayList<>();
+      for (SizedPartition partition : sized) {
+        if (partition.entries != null) {
+          collected.addAll(partition.entries);
+        } else {
+          uncollected.add(partition.index);
+        }
+      }
+      if (!uncollected.isEmpty()) {
+        for (List<Tuple2<ByteArray, byte[]>> partition
+            : encoded.collectPartitions(Ints.toArray(uncollected))) {
+          collected.addAll(partition);
+        }
+      }
+      @SuppressWarnings("unchecked")
+      Coder<Map<K, V>> coder = (Coder<Map<K, V>>) (Coder<?>) shardCoder;
+      context.setSideInput(view, EncodedMap.of(collected, keyCoder, valueCoder), coder);
+    } else {
+      LOG.info(String.format("Splitting side input %s of %d bytes into %d shards",
+          view, size, numShards));
+      JavaPairRDD<ByteArray, byte[]> partitioned =
+          ShuffleHelpers.partitionBy(encoded, new HashPartitioner(numShards));
+      List<BroadcastHelper<EncodedMap<K, V>>> shards = new ArrayList<>(numShards);
+      for (int i = 0; i < numShards; i++) {
+        List<Tuple2<ByteArray, byte[]>> shardEntries =
+            partitioned.collectPartitions(new int[] {i})[0];
+        shards.add(context.addFile(EncodedMap.of(shardEntries, keyCoder, valueCoder),
+            shardCoder));
+      }
+      // Only the handles of the shards are broadcast with the view.
+      @SuppressWarnings("unchecked")
+      Coder<Map<K, V>> coder = (Coder<Map<K, V>>) (Coder<?>) SerializableCoder.of(ShardedMap.class);
+      context.setSideInput(view, new ShardedMap<>(shards, keyCoder), coder);
+    }
+    encoded.unpersist(false);
+  }
+
+  /**
+   * The encoded size of a partition of a map view, along with its entries if they fit in the
+   * partition's share of a shard.
+   */
+  private static final class SizedPartition implements Serializable {
+    private final int index;
+    private final long size;
+    private final List<Tuple2<ByteArray, byte[]>> entries;
+
+    SizedPartition(int index, long size, List<Tuple2<ByteArray, byte[]>> entries) {
+      this.index = index;
+      this.size = size;
+      this.entries = entries;
+    }
+  }
+
+  private static final class SizePartition implements Function2<Integer,
+      Iterator<Tuple2<ByteArray, byte[]>>, Iterator<SizedPartition>> {
+    private final long maxCollectedBytes;
+
+    SizePartition(long maxCollectedBytes) {
+      this.maxCollectedBytes = maxCollectedBytes;
+    }
+
+    @Override
+    public Iterator<SizedPartition> call(Integer index, Iterator<Tuple2<ByteArray, byte[]>> iter) {
+      long size = 0;
+      List<Tuple2<ByteArray, byte[]>> entries = new ArrayList<>();
+      while (iter.hasNext()) {
+        Tuple2<ByteArray, byte[]> entry = iter.next();
+        size += entry._1().getValue().length + entry._2().length;
+        if (entries != null) {
+          if (size <= maxCollectedBytes) {
+            entries.add(entry);
+          } else {
+            entries = null;
+          }
+        }
+      }
+      return Collections.singleton(new SizedPartition(index, size, entries)).iterator();
+    }
+  }
+
   private static class WindowingFunction<R> implements com.google.common.base.Function<R,
       WindowedValue<?>> {
     @Override
@@ -403,16 +847,17 @@ public final class TransformTranslator {
     }
   }
 
-  private static class TupleTagFilter<V> implements Function<Tuple2<TupleTag<V>, Object>, Boolean> {
-    private final TupleTag<V> tag;
+  private static class TupleTagValues
+      implements FlatMapFunction<Tuple2<TupleTag<?>, List<Object>>, Object> {
+    private final TupleTag<?> tag;
 
-    private TupleTagFilter(TupleTag<V> tag) {
+    private TupleTagValues(TupleTag<?> tag) {
       this.tag = tag;
     }
 
     @Override
-    public Boolean call(Tuple2<TupleTag<V>, Object> input) {
-      return tag.equals(input._1());
+    public Iterable<Object> call(Tuple2<TupleTag<?>, List<Object>> chunk) {
+      return tag.equals(chunk._1()) ? chunk._2() : Collections.emptyList();
     }
   }
 
@@ -424,12 +869,7 @@ public final class TransformTranslator {
     } else {
       Map<TupleTag<?>, BroadcastHelper<?>> sideInputs = Maps.newHashMap();
       for (PCollectionView<?> view : views) {
-        Object sideinput = view.fromIterableInternal(context.getPCollectionView(view));
-        Coder<Object> coder = context.getDefaultCoder(sideinput);
-        BroadcastHelper<?> helper = new BroadcastHelper<>(sideinput, coder);
-        //broadcast side inputs
-        helper.broadcast(context.getSparkContext());
-        sideInputs.put(view.getTagInternal(), helper);
+        sideInputs.put(view.getTagInternal(), context.getBroadcastHelper(view));
       }
       return sideInputs;
     }
@@ -448,10 +888,13 @@ public final class TransformTranslator {
     mEvaluators.put(GroupByKey.GroupByKeyOnly.class, gbk());
     mEvaluators.put(Combine.GroupedValues.class, grouped());
     mEvaluators.put(Combine.PerKey.class, combinePerKey());
+    mEvaluators.put(Combine.Globally.class, combineGlobally());
     mEvaluators.put(Flatten.FlattenPCollectionList.class, flattenPColl());
     mEvaluators.put(Create.class, create());
     mEvaluators.put(View.AsSingleton.class, viewAsSingleton());
     mEvaluators.put(View.AsIterable.class, viewAsIter());
+    mEvaluators.put(View.AsMultimap.class, viewAsMultimap());
+    mEvaluators.put(View.AsSingletonMap.class, viewAsSingletonMap());
     mEvaluators.put(View.CreatePCollectionView.class, createPCollView());
   }
 
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark.aggregators;
+
+import java.util.Map;
+
+/**
+ * Management interface exposing the aggregators of a running pipeline over JMX, under the name
+ * {@code com.cloudera.dataflow.spark:type=Aggregators,app=<Spark application id>}.
+ */
+public interface AggregatorsMXBean {
+  /**
+   * @return The current value of each aggregator, as of the last completed task, rendered as a
+   * string.
+   */
+  Map<String, String> getValues();
+}
@@ -26,6 +26,8 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -64,7 +66,7 @@ public class NamedAggregators implements Serializable {
    * @param <T>       Type to be returned.
    * @return the value of the aggregator associated with the specified name
    */
-  public <T> T getValue(String name, Class<T> typeClass) {
+  public synchronized <T> T getValue(String name, Class<T> typeClass) {
     return typeClass.cast(mNamedAggregators.get(name).render());
   }
 
@@ -75,7 +77,7 @@ public class NamedAggregators implements Serializable {
    * @return This instance of Named aggregators with associated states updated to reflect the
    * other instance's aggregators.
    */
-  public NamedAggregators merge(NamedAggregators other) {
+  public synchronized NamedAggregators merge(NamedAggregators other) {
     for (Map.Entry<String, State<?, ?, ?>> e : other.mNamedAggregators.entrySet()) {
       String key = e.getKey();
       State<?, ?, ?> otherValue = e.getValue();
@@ -89,6 +91,21 @@ public class NamedAggregators implements Serializable {
     return this;
   }
 
+  /**
+   * Renders the value of every aggregator. On the driver, the instance is merged with the
+   * aggregators of each task as it completes, so this is a consistent snapshot of the values as
+   * of the tasks completed so far, which can be taken while the pipeline is running.
+   *
+   * @return The value of each aggregator, by name.
+   */
+  public synchronized Map<String, Object> getValues() {
+    Map<String, Object> values = new TreeMap<>();
+    for (Map.Entry<String, State<?, ?, ?>> e : mNamedAggregators.entrySet()) {
+      values.put(e.getKey(), e.getValue().render());
+    }
+    return values;
+  }
+
   /**
    * Helper method to merge States whose generic types aren't provably the same,
    * so require some casting.
@@ -99,7 +116,7 @@ public class NamedAggregators implements Serializable {
   }
 
   @Override
-  public String toString() {
+  public synchronized String toString() {
     StringBuilder sb = new StringBuilder();
     for (Map.Entry<String, State<?, ?, ?>> e : mNamedAggregators.entrySet()) {
       sb.append(e.getKey()).append(": ").append(e.getValue().render());
@@ -183,11 +200,25 @@ public class NamedAggregators implements Serializable {
 
   /**
    * states correspond to dataflow objects. this one =&gt; serializable function
+   * <p/>
+   * Rather than applying the function to the current state and each new element, the elements
+   * are buffered in a reusable array, and the function is applied to the current state and a
+   * whole batch of elements at once, as well as whenever the state is read, merged or
+   * serialized. This gives the same result as long as the function is associative and
+   * commutative, as aggregating functions must be, and the list the function is applied to
+   * must not be retained by it, as it's reused for the next batch.
    */
   public static class SerFunctionState<In, Out> implements State<In, Out, Out> {
 
+    /**
+     * Number of values the function is applied to at once, including the current state.
+     */
+    private static final int BATCH_SIZE = 64;
+
     private final SerializableFunction<Iterable<In>, Out> sfunc;
     private Out state;
+    private transient Object[] buffer;
+    private transient int buffered;
 
     public SerFunctionState(SerializableFunction<Iterable<In>, Out> sfunc) {
       this.sfunc = sfunc;
@@ -196,14 +227,20 @@ public class NamedAggregators implements Serializable {
 
     @Override
     public void update(In element) {
-      @SuppressWarnings("unchecked")
-      In thisState = (In) state;
-      this.state = sfunc.apply(ImmutableList.of(element, thisState));
+      if (buffer == null) {
+        // The first slot is reserved for the current state.
+        buffer = new Object[BATCH_SIZE];
+        buffered = 1;
+      } else if (buffered == BATCH_SIZE) {
+        flush();
+      }
+      buffer[buffered++] = element;
     }
 
     @Override
     public State<In, Out, Out> merge(State<In, Out, Out> other) {
       // Add exception catching and logging here.
+      flush();
       @SuppressWarnings("unchecked")
       In thisState = (In) state;
       @SuppressWarnings("unchecked")
@@ -214,13 +251,204 @@ public class NamedAggregators implements Serializable {
 
     @Override
     public Out current() {
+      flush();
       return state;
     }
 
     @Override
     public Out render() {
+      flush();
+      return state;
+    }
+
+    /**
+     * Applies the function to the current state and the buffered elements.
+     */
+    private void flush() {
+      if (buffered > 1) {
+        buffer[0] = state;
+        @SuppressWarnings("unchecked")
+        List<In> inputs = (List<In>) Arrays.asList(buffer);
+        state = sfunc.apply(buffered == BATCH_SIZE ? inputs : inputs.subList(0, buffered));
+        Arrays.fill(buffer, 0, buffered, null);
+        buffered = 1;
+      }
+    }
+
+    private void writeObject(ObjectOutputStream oos) throws IOException {
+      flush();
+      oos.defaultWriteObject();
+    }
+  }
+
+  /**
+   * The operations of the standard Sum, Min and Max combiners, applied to primitive numbers.
+   */
+  public enum NumericOp {
+    SUM {
+      @Override
+      int apply(int a, int b) {
+        return a + b;
+      }
+
+      @Override
+      long apply(long a, long b) {
+        return a + b;
+      }
+
+      @Override
+      double apply(double a, double b) {
+        return a + b;
+      }
+    },
+    MIN {
+      @Override
+      int apply(int a, int b) {
+        return Math.min(a, b);
+      }
+
+      @Override
+      long apply(long a, long b) {
+        return Math.min(a, b);
+      }
+
+      @Override
+      double apply(double a, double b) {
+        // Compare as the Min combiner does, rather than as Math.min, which differs for NaN.
+        return Double.compare(a, b) <= 0 ? a : b;
+      }
+    },
+    MAX {
+      @Override
+      int apply(int a, int b) {
+        return Math.max(a, b);
+      }
+
+      @Override
+      long apply(long a, long b) {
+        return Math.max(a, b);
+      }
+
+      @Override
+      double apply(double a, double b) {
+        return Double.compare(a, b) >= 0 ? a : b;
+      }
+    };
+
+    abstract int apply(int a, int b);
+
+    abstract long apply(long a, long b);
+
+    abstract double apply(double a, double b);
+  }
+
+  /**
+   * State of a standard combiner over integers, held in a primitive field: updates and merges
+   * neither box the state nor go through the combiner.
+   */
+  public static class IntState implements State<Integer, Integer, Integer> {
+
+    private final NumericOp op;
+    private int state;
+
+    public IntState(NumericOp op, int initial) {
+      this.op = op;
+      this.state = initial;
+    }
+
+    @Override
+    public void update(Integer element) {
+      state = op.apply(state, element.intValue());
+    }
+
+    @Override
+    public State<Integer, Integer, Integer> merge(State<Integer, Integer, Integer> other) {
+      int otherState = other instanceof IntState ? ((IntState) other).state : other.current();
+      state = op.apply(state, otherState);
+      return this;
+    }
+
+    @Override
+    public Integer current() {
+      return state;
+    }
+
+    @Override
+    public Integer render() {
+      return state;
+    }
+  }
+
+  /**
+   * State of a standard combiner over longs, held in a primitive field.
+   */
+  public static class LongState implements State<Long, Long, Long> {
+
+    private final NumericOp op;
+    private long state;
+
+    public LongState(NumericOp op, long initial) {
+      this.op = op;
+      this.state = initial;
+    }
+
+    @Override
+    public void update(Long element) {
+      state = op.apply(state, element.longValue());
+    }
+
+    @Override
+    public State<Long, Long, Long> merge(State<Long, Long, Long> other) {
+      long otherState = other instanceof LongState ? ((LongState) other).state : other.current();
+      state = op.apply(state, otherState);
+      return this;
+    }
+
+    @Override
+    public Long current() {
+      return state;
+    }
+
+    @Override
+    public Long render() {
       return state;
     }
   }
 
+  /**
+   * State of a standard combiner over doubles, held in a primitive field.
+   */
+  public static class DoubleState implements State<Double, Double, Double> {
+
+    private final NumericOp op;
+    private double state;
+
+    public DoubleState(NumericOp op, double initial) {
+      this.op = op;
+      this.state = initial;
+    }
+
+    @Override
+    public void update(Double element) {
+      state = op.apply(state, element.doubleValue());
+    }
+
+    @Override
+    public State<Double, Double, Double> merge(State<Double, Double, Double> other) {
+      double otherState =
+          other instanceof DoubleState ? ((DoubleState) other).state : other.current();
+      state = op.apply(state, otherState);
+      return this;
+    }
+
+    @Override
+    public Double current() {
+      return state;
+    }
+
+    @Override
+    public Double render() {
+      return state;
+    }
+  }
 }
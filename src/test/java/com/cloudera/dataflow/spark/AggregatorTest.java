@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
+import com.google.cloud.dataflow.sdk.transforms.Aggregator;
+import com.google.cloud.dataflow.sdk.transforms.Combine;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.transforms.DoFn;
+import com.google.cloud.dataflow.sdk.transforms.Max;
+import com.google.cloud.dataflow.sdk.transforms.Min;
+import com.google.cloud.dataflow.sdk.transforms.ParDo;
+import com.google.cloud.dataflow.sdk.transforms.SerializableFunction;
+import com.google.cloud.dataflow.sdk.transforms.Sum;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.collect.Lists;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AggregatorTest {
+
+  private static final int NUM_ELEMENTS = 100000;
+
+  @Test
+  public void testConcurrentTasks() throws Exception {
+    List<Integer> numbers = Lists.newArrayList();
+    for (int i = 0; i < NUM_ELEMENTS; i++) {
+      numbers.add(i);
+    }
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollection<Integer> output = p.apply(Create.of(numbers)).setCoder(VarIntCoder.of())
+        .apply(ParDo.of(new CountFn()))
+        .setCoder(VarIntCoder.of());
+
+    // Run many partitions on several cores at once, each of which updates the aggregator.
+    SparkPipelineOptions options = SparkPipelineOptionsFactory.create();
+    options.setSparkMaster("local[4]");
+    options.setCreatePartitions(16);
+    options.setRegisterAggregatorsMBean(true);
+    EvaluationResult res = SparkPipelineRunner.create(options).run(p);
+    Assert.assertEquals(NUM_ELEMENTS, Lists.newArrayList(res.get(output)).size());
+    Assert.assertEquals(NUM_ELEMENTS, (int) res.getAggregatorValue("count", Integer.class));
+    Assert.assertEquals(NUM_ELEMENTS, (long) res.getAggregatorValue("longCount", Long.class));
+    Assert.assertEquals(NUM_ELEMENTS, (int) res.getAggregatorValue("fnCount", Integer.class));
+    Assert.assertEquals(0L, (long) res.getAggregatorValue("min", Long.class));
+    Assert.assertEquals(NUM_ELEMENTS - 1.0, res.getAggregatorValue("max", Double.class), 0.0);
+    Assert.assertEquals((NUM_ELEMENTS - 1) / 2.0,
+        res.getAggregatorValue("mean", Double.class), 0.0);
+    Assert.assertEquals(NUM_ELEMENTS, res.getAggregatorValues().get("count"));
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    String appId = ((EvaluationContext) res).getSparkContext().sc().applicationId();
+    ObjectName name = new ObjectName("com.cloudera.dataflow.spark:type=Aggregators,app="
+        + ObjectName.quote(appId));
+    TabularData values = (TabularData) server.getAttribute(name, "Values");
+    Assert.assertEquals(String.valueOf(NUM_ELEMENTS),
+        values.get(new Object[] {"count"}).get("value"));
+    res.close();
+    Assert.assertFalse(server.isRegistered(name));
+  }
+
+  private static class CountFn extends DoFn<Integer, Integer> {
+    private Aggregator<Integer> count;
+    private Aggregator<Long> longCount;
+    private Aggregator<Integer> fnCount;
+    private Aggregator<Long> min;
+    private Aggregator<Double> max;
+    private Aggregator<Integer> mean;
+
+    @Override
+    public void startBundle(Context c) throws Exception {
+      count = c.createAggregator("count", new Sum.SumIntegerFn());
+      longCount = c.createAggregator("longCount", new Sum.SumLongFn());
+      fnCount = c.createAggregator("fnCount", new SumFn());
+      min = c.createAggregator("min", new Min.MinLongFn());
+      max = c.createAggregator("max", new Max.MaxDoubleFn());
+      mean = c.createAggregator("mean", new MeanFn());
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      count.addValue(1);
+      longCount.addValue(1L);
+      fnCount.addValue(1);
+      min.addValue((long) c.element());
+      max.addValue((double) c.element());
+      mean.addValue(c.element());
+      c.output(c.element());
+    }
+  }
+
+  private static class SumFn implements SerializableFunction<Iterable<Integer>, Integer> {
+    @Override
+    public Integer apply(Iterable<Integer> values) {
+      int sum = 0;
+      for (int value : values) {
+        sum += value;
+      }
+      return sum;
+    }
+  }
+
+  /**
+   * A combiner with no primitive state, whose accumulator is encoded with the default coder of
+   * {@code List<Long>}.
+   */
+  private static class MeanFn extends Combine.CombineFn<Integer, List<Long>, Double> {
+    @Override
+    public List<Long> createAccumulator() {
+      return Lists.newArrayList(0L, 0L);
+    }
+
+    @Override
+    public void addInput(List<Long> accumulator, Integer input) {
+      accumulator.set(0, accumulator.get(0) + input);
+      accumulator.set(1, accumulator.get(1) + 1);
+    }
+
+    @Override
+    public List<Long> mergeAccumulators(Iterable<List<Long>> accumulators) {
+      List<Long> merged = createAccumulator();
+      for (List<Long> accumulator : accumulators) {
+        merged.set(0, merged.get(0) + accumulator.get(0));
+        merged.set(1, merged.get(1) + accumulator.get(1));
+      }
+      return merged;
+    }
+
+    @Override
+    public Double extractOutput(List<Long> accumulator) {
+      return accumulator.get(1) == 0 ? 0.0 : (double) accumulator.get(0) / accumulator.get(1);
+    }
+  }
+}
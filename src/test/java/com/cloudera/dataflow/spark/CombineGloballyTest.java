@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
+import com.google.cloud.dataflow.sdk.transforms.Aggregator;
+import com.google.cloud.dataflow.sdk.transforms.Combine;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.transforms.DoFn;
+import com.google.cloud.dataflow.sdk.transforms.Max;
+import com.google.cloud.dataflow.sdk.transforms.ParDo;
+import com.google.cloud.dataflow.sdk.transforms.Sum;
+import com.google.cloud.dataflow.sdk.transforms.View;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.cloud.dataflow.sdk.values.PCollectionTuple;
+import com.google.cloud.dataflow.sdk.values.PCollectionView;
+import com.google.cloud.dataflow.sdk.values.TupleTag;
+import com.google.cloud.dataflow.sdk.values.TupleTagList;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CombineGloballyTest {
+
+  private static final TupleTag<Integer> evens = new TupleTag<>();
+  private static final TupleTag<Integer> odds = new TupleTag<>();
+
+  @Test
+  public void testCombineGlobally() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollection<Integer> numbers = p.apply(Create.of(1, 2, 3, 4)).setCoder(VarIntCoder.of());
+    PCollection<Integer> sum = numbers.apply(Combine.globally(new Sum.SumIntegerFn()));
+    PCollectionView<Integer> view = sum.apply(View.<Integer>asSingleton());
+    PCollection<Integer> shares = numbers
+        .apply(ParDo.withSideInputs(view).of(new PercentFn(view)))
+        .setCoder(VarIntCoder.of());
+
+    EvaluationResult res = SparkPipelineRunner.create().run(p);
+    Assert.assertEquals(ImmutableList.of(10), Lists.newArrayList(res.get(sum)));
+    Assert.assertEquals(ImmutableSet.of(10, 20, 30, 40), Sets.newHashSet(res.get(shares)));
+    res.close();
+  }
+
+  @Test
+  public void testCombineGloballyEmpty() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollection<Integer> numbers = p.apply(Create.of(Collections.<Integer>emptyList()))
+        .setCoder(VarIntCoder.of());
+    PCollection<Integer> sum = numbers.apply(Combine.globally(new Sum.SumIntegerFn()));
+    PCollection<Integer> noDefault = numbers
+        .apply(Combine.globally(new Sum.SumIntegerFn()).withoutDefaults());
+
+    EvaluationResult res = SparkPipelineRunner.create().run(p);
+    Assert.assertEquals(ImmutableList.of(0), Lists.newArrayList(res.get(sum)));
+    Assert.assertEquals(ImmutableList.of(), Lists.newArrayList(res.get(noDefault)));
+    res.close();
+  }
+
+  @Test
+  public void testCombinesAreSinks() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollection<Integer> numbers = p.apply(Create.of(1, 2, 3, 4)).setCoder(VarIntCoder.of())
+        .apply(ParDo.of(new CountFn())).setCoder(VarIntCoder.of());
+    PCollection<Integer> sum = numbers.apply(Combine.globally(new Sum.SumIntegerFn()));
+    PCollection<Integer> max = numbers.apply(Combine.globally(new Max.MaxIntegerFn()));
+
+    EvaluationContext res = (EvaluationContext) SparkPipelineRunner.create().run(p);
+    // Both combines read the persisted numbers as they were evaluated, and released them.
+    Assert.assertEquals(4, (int) res.getAggregatorValue("processed", Integer.class));
+    Assert.assertEquals(0, res.getSparkContext().sc().getPersistentRDDs().size());
+    Assert.assertEquals(ImmutableList.of(10), Lists.newArrayList(res.get(sum)));
+    Assert.assertEquals(ImmutableList.of(4), Lists.newArrayList(res.get(max)));
+    res.close();
+  }
+
+  @Test
+  public void testCombineInputKeptForUnreadOutputs() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollectionTuple split = p.apply(Create.of(1, 2, 3, 4)).setCoder(VarIntCoder.of())
+        .apply(ParDo.of(new SplitParityFn()).withOutputTags(evens, TupleTagList.of(odds)));
+    split.get(evens).setCoder(VarIntCoder.of());
+    split.get(odds).setCoder(VarIntCoder.of());
+    PCollection<Integer> sum = split.get(evens).apply(Combine.globally(new Sum.SumIntegerFn()));
+
+    EvaluationContext res = (EvaluationContext) SparkPipelineRunner.create().run(p);
+    Assert.assertEquals(ImmutableList.of(6), Lists.newArrayList(res.get(sum)));
+    // The odd numbers are read back from what the combine computed, without processing the
+    // numbers again, after which nothing is left persisted.
+    Assert.assertEquals(ImmutableSet.of(1, 3), Sets.newHashSet(res.get(split.get(odds))));
+    Assert.assertEquals(4, (int) res.getAggregatorValue("processed", Integer.class));
+    Assert.assertEquals(0, res.getSparkContext().sc().getPersistentRDDs().size());
+    res.close();
+  }
+
+  private static class SplitParityFn extends DoFn<Integer, Integer> {
+    private Aggregator<Integer> processed;
+
+    @Override
+    public void startBundle(Context c) throws Exception {
+      processed = c.createAggregator("processed", new Sum.SumIntegerFn());
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      processed.addValue(1);
+      if (c.element() % 2 == 0) {
+        c.output(c.element());
+      } else {
+        c.sideOutput(odds, c.element());
+      }
+    }
+  }
+
+  private static class CountFn extends DoFn<Integer, Integer> {
+    private Aggregator<Integer> processed;
+
+    @Override
+    public void startBundle(Context c) throws Exception {
+      processed = c.createAggregator("processed", new Sum.SumIntegerFn());
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      processed.addValue(1);
+      c.output(c.element());
+    }
+  }
+
+  private static class PercentFn extends DoFn<Integer, Integer> {
+    private final PCollectionView<Integer> total;
+
+    PercentFn(PCollectionView<Integer> total) {
+      this.total = total;
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      c.output(c.element() * 100 / c.sideInput(total));
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CreateTest {
+
+  private static final List<Integer> NUMBERS =
+      Lists.newArrayList(ContiguousSet.create(Range.closed(1, 10), DiscreteDomain.integers()));
+
+  @Test
+  public void testCreatePartitions() throws Exception {
+    SparkPipelineOptions options = SparkPipelineOptionsFactory.create();
+    options.setCreatePartitions(3);
+    testCreate(options, 3);
+  }
+
+  @Test
+  public void testCreatePartitionBytes() throws Exception {
+    SparkPipelineOptions options = SparkPipelineOptionsFactory.create();
+    // Each partition is complete once it holds two one-byte elements.
+    options.setCreatePartitionBytes(2);
+    testCreate(options, 5);
+  }
+
+  @Test
+  public void testCreatePartitionsCappedBySize() throws Exception {
+    SparkPipelineOptions options = SparkPipelineOptionsFactory.create();
+    options.setCreatePartitions(3);
+    // The partitions of four elements would be too large.
+    options.setCreatePartitionBytes(2);
+    testCreate(options, 5);
+  }
+
+  private static void testCreate(SparkPipelineOptions options, int numPartitions) {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollection<Integer> numbers = p.apply(Create.of(NUMBERS)).setCoder(VarIntCoder.of());
+
+    EvaluationContext res = (EvaluationContext) SparkPipelineRunner.create(options).run(p);
+    Assert.assertEquals(numPartitions, res.getRDD(numbers).partitions().size());
+    Assert.assertEquals(NUMBERS, Lists.newArrayList(res.get(numbers)));
+    res.close();
+  }
+}
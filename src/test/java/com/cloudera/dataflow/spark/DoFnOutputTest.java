@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.transforms.DoFn;
+import com.google.cloud.dataflow.sdk.transforms.ParDo;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DoFnOutputTest {
+
+  @Test
+  public void testOutputsAreEmittedInOrder() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollection<String> strings = p.apply(Create.of("a")).setCoder(StringUtf8Coder.of());
+    PCollection<String> output = strings.apply(ParDo.of(new StartProcessFinishFn()))
+        .setCoder(StringUtf8Coder.of());
+
+    EvaluationResult res = SparkPipelineRunner.create().run(p);
+    Assert.assertEquals(ImmutableList.of("start", "a", "A", "finish"),
+        Lists.newArrayList(res.get(output)));
+    res.close();
+  }
+
+  private static class StartProcessFinishFn extends DoFn<String, String> {
+    @Override
+    public void startBundle(Context c) throws Exception {
+      c.output("start");
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      c.output(c.element());
+      c.output(c.element().toUpperCase());
+    }
+
+    @Override
+    public void finishBundle(Context c) throws Exception {
+      c.output("finish");
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EvaluationResultTest {
+
+  private static final Set<String> WORDS = ImmutableSet.of("one", "two", "three", "four");
+
+  @Test
+  public void testRetrieval() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollection<String> words = p.apply(Create.of(WORDS)).setCoder(StringUtf8Coder.of());
+
+    EvaluationResult res = SparkPipelineRunner.create().run(p);
+    Assert.assertEquals(WORDS, Sets.newHashSet(res.getLazily(words)));
+    Assert.assertEquals(2, res.take(words, 2).size());
+    Assert.assertTrue(WORDS.containsAll(res.take(words, 2)));
+    Assert.assertEquals(WORDS, Sets.newHashSet(res.sample(words, 1.0)));
+    Assert.assertTrue(Iterables.isEmpty(res.sample(words, 0.0)));
+    res.close();
+  }
+}
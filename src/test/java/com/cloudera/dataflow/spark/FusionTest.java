@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.transforms.DoFn;
+import com.google.cloud.dataflow.sdk.transforms.ParDo;
+import com.google.cloud.dataflow.sdk.transforms.View;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.cloud.dataflow.sdk.values.PCollectionView;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableMultiset;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FusionTest {
+
+  @Test
+  public void testFusedChain() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollectionView<String> suffix = p.apply(Create.of("!")).setCoder(StringUtf8Coder.of())
+        .apply(View.<String>asSingleton());
+    PCollection<String> strings = p.apply(Create.of("a", "b")).setCoder(StringUtf8Coder.of());
+    PCollection<String> intermediate = strings.apply(ParDo.of(new BundleFn("1")))
+        .setCoder(StringUtf8Coder.of());
+    PCollection<String> output = intermediate
+        .apply(ParDo.withSideInputs(suffix).of(new SuffixFn(suffix)))
+        .setCoder(StringUtf8Coder.of())
+        .apply(ParDo.of(new BundleFn("2")))
+        .setCoder(StringUtf8Coder.of());
+
+    // Use a single partition, so that the outputs of each bundle hook occur exactly once.
+    SparkPipelineOptions options = SparkPipelineOptionsFactory.create();
+    options.setCreatePartitions(1);
+    EvaluationResult res = SparkPipelineRunner.create(options).run(p);
+    Assert.assertEquals(ImmutableMultiset.of("start2", "start1!2", "a1!2", "b1!2", "finish1!2",
+        "finish2"), HashMultiset.create(res.get(output)));
+    // The fused intermediate output can still be retrieved on its own.
+    Assert.assertEquals(ImmutableMultiset.of("start1", "a1", "b1", "finish1"),
+        HashMultiset.create(res.get(intermediate)));
+    res.close();
+  }
+
+  private static class BundleFn extends DoFn<String, String> {
+    private final String suffix;
+
+    BundleFn(String suffix) {
+      this.suffix = suffix;
+    }
+
+    @Override
+    public void startBundle(Context c) throws Exception {
+      c.output("start" + suffix);
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      c.output(c.element() + suffix);
+    }
+
+    @Override
+    public void finishBundle(Context c) throws Exception {
+      c.output("finish" + suffix);
+    }
+  }
+
+  private static class SuffixFn extends DoFn<String, String> {
+    private final PCollectionView<String> suffix;
+
+    SuffixFn(PCollectionView<String> suffix) {
+      this.suffix = suffix;
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      c.output(c.element() + c.sideInput(suffix));
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
+import com.google.cloud.dataflow.sdk.transforms.Combine;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.transforms.GroupByKey;
+import com.google.cloud.dataflow.sdk.transforms.Sum;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import org.apache.spark.Dependency;
+import org.apache.spark.rdd.RDD;
+import org.junit.Assert;
+import org.junit.Test;
+import scala.collection.JavaConversions;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class GroupByKeyTest {
+
+  private static final List<KV<String, Integer>> PAIRS = ImmutableList.of(
+      KV.of("a", 1), KV.of("b", 2), KV.of("a", 3), KV.of("c", 4), KV.of("a", 5));
+
+  @Test
+  public void testGroupByKey() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollection<KV<String, Integer>> pairs = p.apply(Create.of(PAIRS))
+        .setCoder(KvCoder.of(StringUtf8Coder.of(), VarIntCoder.of()));
+    PCollection<KV<String, Iterable<Integer>>> grouped =
+        pairs.apply(GroupByKey.<String, Integer>create());
+
+    EvaluationResult res = SparkPipelineRunner.create().run(p);
+    Map<String, Set<Integer>> actual = new HashMap<>();
+    for (KV<String, Iterable<Integer>> kv : res.get(grouped)) {
+      Assert.assertNull(actual.put(kv.getKey(), Sets.newHashSet(kv.getValue())));
+    }
+    res.close();
+    Assert.assertEquals(3, actual.size());
+    Assert.assertEquals(ImmutableSet.of(1, 3, 5), actual.get("a"));
+    Assert.assertEquals(ImmutableSet.of(2), actual.get("b"));
+    Assert.assertEquals(ImmutableSet.of(4), actual.get("c"));
+  }
+
+  @Test
+  public void testGroupByKeyThenCombine() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollection<KV<String, Integer>> pairs = p.apply(Create.of(PAIRS))
+        .setCoder(KvCoder.of(StringUtf8Coder.of(), VarIntCoder.of()));
+    PCollection<KV<String, Iterable<Integer>>> grouped =
+        pairs.apply(GroupByKey.<String, Integer>create());
+    PCollection<KV<String, Integer>> sums =
+        grouped.apply(Combine.<String, Integer, Integer>groupedValues(new Sum.SumIntegerFn()));
+
+    EvaluationContext res = (EvaluationContext) SparkPipelineRunner.create().run(p);
+    Map<String, Integer> actual = new HashMap<>();
+    for (KV<String, Integer> kv : res.get(sums)) {
+      Assert.assertNull(actual.put(kv.getKey(), kv.getValue()));
+    }
+    Assert.assertEquals(ImmutableMap.of("a", 9, "b", 2, "c", 4), actual);
+    // The grouping was lifted into the combine, which doesn't read the grouped values...
+    Assert.assertFalse(dependsOn(res.getRDD(sums).rdd(), res.getRDD(grouped).rdd()));
+    // ...but they can still be retrieved.
+    Assert.assertEquals(3, Iterables.size(res.get(grouped)));
+    res.close();
+  }
+
+  private static boolean dependsOn(RDD<?> rdd, RDD<?> ancestor) {
+    if (rdd == ancestor) {
+      return true;
+    }
+    for (Dependency<?> dependency : JavaConversions.seqAsJavaList(rdd.dependencies())) {
+      if (dependsOn(dependency.rdd(), ancestor)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.transforms.DoFn;
+import com.google.cloud.dataflow.sdk.transforms.ParDo;
+import com.google.cloud.dataflow.sdk.transforms.Sum;
+import com.google.cloud.dataflow.sdk.transforms.View;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.cloud.dataflow.sdk.values.PCollectionView;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MapSideInputTest {
+
+  @Test
+  public void testMultimapSideInput() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollectionView<Map<String, Iterable<Integer>>> view = createTable(p)
+        .apply(View.<String, Integer>asMap());
+    PCollection<String> output = createKeys(p)
+        .apply(ParDo.withSideInputs(view).of(new MultimapLookupFn(view)))
+        .setCoder(StringUtf8Coder.of());
+
+    EvaluationResult res = SparkPipelineRunner.create().run(p);
+    Assert.assertEquals(ImmutableSet.of("a:3", "b:1", "c:0"),
+        Sets.newHashSet(res.get(output)));
+    res.close();
+  }
+
+  @Test
+  public void testSingletonMapSideInput() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollectionView<Map<String, Integer>> view = createTable(p)
+        .apply(View.<String, Integer>asMap().withCombiner(new Sum.SumIntegerFn()));
+    PCollection<String> output = createKeys(p)
+        .apply(ParDo.withSideInputs(view).of(new MapLookupFn(view)))
+        .setCoder(StringUtf8Coder.of());
+
+    EvaluationResult res = SparkPipelineRunner.create().run(p);
+    Assert.assertEquals(ImmutableSet.of("a:4", "b:2", "c:null"),
+        Sets.newHashSet(res.get(output)));
+    res.close();
+  }
+
+  @Test
+  public void testShardedMapSideInput() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollectionView<Map<String, Iterable<Integer>>> view = createTable(p)
+        .apply(View.<String, Integer>asMap());
+    PCollection<String> output = createKeys(p)
+        .apply(ParDo.withSideInputs(view).of(new MultimapLookupFn(view)))
+        .setCoder(StringUtf8Coder.of());
+
+    // Small enough for each entry of the view to end up in a shard of its own.
+    SparkPipelineOptions options = SparkPipelineOptionsFactory.create();
+    options.setMaxSideInputShardBytes(1);
+    EvaluationResult res = SparkPipelineRunner.create(options).run(p);
+    Assert.assertEquals(ImmutableSet.of("a:3", "b:1", "c:0"),
+        Sets.newHashSet(res.get(output)));
+    res.close();
+  }
+
+  @Test
+  public void testMappedMapSideInput() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollectionView<Map<String, Integer>> view = createTable(p)
+        .apply(View.<String, Integer>asMap().withCombiner(new Sum.SumIntegerFn()));
+    PCollection<String> output = createKeys(p)
+        .apply(ParDo.withSideInputs(view).of(new MapLookupFn(view)))
+        .setCoder(StringUtf8Coder.of());
+
+    SparkPipelineOptions options = SparkPipelineOptionsFactory.create();
+    options.setMinMappedSideInputBytes(0);
+    EvaluationResult res = SparkPipelineRunner.create(options).run(p);
+    Assert.assertEquals(ImmutableSet.of("a:4", "b:2", "c:null"),
+        Sets.newHashSet(res.get(output)));
+    res.close();
+  }
+
+  private static PCollection<KV<String, Integer>> createTable(Pipeline p) {
+    return p.apply(Create.of(KV.of("a", 1), KV.of("a", 1), KV.of("a", 2), KV.of("b", 2)))
+        .setCoder(KvCoder.of(StringUtf8Coder.of(), VarIntCoder.of()));
+  }
+
+  private static PCollection<String> createKeys(Pipeline p) {
+    return p.apply(Create.of("a", "b", "c")).setCoder(StringUtf8Coder.of());
+  }
+
+  private static class MultimapLookupFn extends DoFn<String, String> {
+    private final PCollectionView<Map<String, Iterable<Integer>>> view;
+
+    MultimapLookupFn(PCollectionView<Map<String, Iterable<Integer>>> view) {
+      this.view = view;
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      Iterable<Integer> values = c.sideInput(view).get(c.element());
+      int count = 0;
+      if (values != null) {
+        for (Integer ignored : values) {
+          count++;
+        }
+      }
+      c.output(c.element() + ":" + count);
+    }
+  }
+
+  private static class MapLookupFn extends DoFn<String, String> {
+    private final PCollectionView<Map<String, Integer>> view;
+
+    MapLookupFn(PCollectionView<Map<String, Integer>> view) {
+      this.view = view;
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      c.output(c.element() + ":" + c.sideInput(view).get(c.element()));
+    }
+  }
+}
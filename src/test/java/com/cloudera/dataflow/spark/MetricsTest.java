@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.KvCoder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.cloud.dataflow.sdk.io.TextIO;
+import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
+import com.google.cloud.dataflow.sdk.transforms.Combine;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.transforms.DoFn;
+import com.google.cloud.dataflow.sdk.transforms.GroupByKey;
+import com.google.cloud.dataflow.sdk.transforms.ParDo;
+import com.google.cloud.dataflow.sdk.transforms.Sum;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.collect.Lists;
+import java.io.File;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MetricsTest {
+
+  @Rule
+  public final TemporaryFolder tmpDir = new TemporaryFolder();
+
+  @Test
+  public void testTransformMetrics() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollection<KV<String, Iterable<Integer>>> grouped = p
+        .apply(Create.of("a", "b", "a", "c", "a")).setCoder(StringUtf8Coder.of())
+        .apply(ParDo.named("KeyByWord").of(new KeyFn()))
+        .setCoder(KvCoder.of(StringUtf8Coder.of(), VarIntCoder.of()))
+        .apply(GroupByKey.<String, Integer>create());
+    grouped.apply(ParDo.of(new FormatFn<Iterable<Integer>>())).setCoder(StringUtf8Coder.of())
+        .apply(TextIO.Write.to(new File(tmpDir.getRoot(), "grouped").getPath()));
+
+    EvaluationResult res = SparkPipelineRunner.create(metricsOptions()).run(p);
+    Assert.assertEquals(3, Lists.newArrayList(res.get(grouped)).size());
+
+    Map<String, TransformMetrics> metrics = res.getMetrics();
+    TransformMetrics keyBy = metrics.get("KeyByWord");
+    Assert.assertNotNull("No metrics in " + metrics.keySet(), keyBy);
+    Assert.assertEquals(5, keyBy.getElementsIn());
+    Assert.assertEquals(5, keyBy.getElementsOut());
+    // Keying is pipelined with the map side of the shuffle.
+    Assert.assertTrue(keyBy.getStages() >= 1);
+    Assert.assertTrue(keyBy.getShuffleWriteBytes() > 0);
+    TransformMetrics gbk = find(metrics, "GroupByKeyOnly");
+    Assert.assertEquals(5, gbk.getElementsIn());
+    // Counted as the write ran; retrieving the grouped values after the run isn't accounted for.
+    Assert.assertEquals(3, gbk.getElementsOut());
+    res.close();
+  }
+
+  @Test
+  public void testFusedAndLiftedMetrics() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    p.apply(Create.of("a", "b", "a", "c", "a")).setCoder(StringUtf8Coder.of())
+        .apply(ParDo.named("Trim").of(new TrimFn())).setCoder(StringUtf8Coder.of())
+        .apply(ParDo.named("KeyByWord").of(new KeyFn()))
+        .setCoder(KvCoder.of(StringUtf8Coder.of(), VarIntCoder.of()))
+        .apply(GroupByKey.<String, Integer>create())
+        .apply(Combine.<String, Integer, Integer>groupedValues(new Sum.SumIntegerFn()))
+        .apply(ParDo.of(new FormatFn<Integer>())).setCoder(StringUtf8Coder.of())
+        .apply(TextIO.Write.to(new File(tmpDir.getRoot(), "counts").getPath()));
+
+    EvaluationResult res = SparkPipelineRunner.create(metricsOptions()).run(p);
+    Map<String, TransformMetrics> metrics = res.getMetrics();
+    // Trim is fused with KeyByWord, and the grouping lifted into the combine.
+    Assert.assertEquals(5, find(metrics, "Trim").getElementsOut());
+    Assert.assertEquals(5, find(metrics, "KeyByWord").getElementsIn());
+    Assert.assertEquals(3, find(metrics, "GroupByKeyOnly").getElementsOut());
+    Assert.assertEquals(3, find(metrics, "GroupedValues").getElementsOut());
+    res.close();
+  }
+
+  @Test
+  public void testNoMetrics() throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollection<String> strings = p.apply(Create.of("a")).setCoder(StringUtf8Coder.of());
+
+    SparkPipelineOptions options = SparkPipelineOptionsFactory.create();
+    options.setCollectMetrics(false);
+    EvaluationResult res = SparkPipelineRunner.create(options).run(p);
+    Assert.assertEquals("a", res.get(strings).iterator().next());
+    Assert.assertTrue(res.getMetrics().isEmpty());
+    res.close();
+  }
+
+  private static SparkPipelineOptions metricsOptions() {
+    SparkPipelineOptions options = SparkPipelineOptionsFactory.create();
+    options.setCollectMetrics(true);
+    return options;
+  }
+
+  private static TransformMetrics find(Map<String, TransformMetrics> metrics, String name) {
+    for (TransformMetrics transform : metrics.values()) {
+      if (transform.getName().contains(name)) {
+        return transform;
+      }
+    }
+    throw new AssertionError("No metrics for " + name + " in " + metrics.keySet());
+  }
+
+  private static class TrimFn extends DoFn<String, String> {
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      c.output(c.element().trim());
+    }
+  }
+
+  private static class FormatFn<V> extends DoFn<KV<String, V>, String> {
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      c.output(c.element().getKey() + ": " + c.element().getValue());
+    }
+  }
+
+  private static class KeyFn extends DoFn<String, KV<String, Integer>> {
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      c.output(KV.of(c.element(), 1));
+    }
+  }
+}
@@ -17,6 +17,7 @@ package com.cloudera.dataflow.spark;
 
 import com.google.cloud.dataflow.sdk.Pipeline;
 import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
 import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
 import com.google.cloud.dataflow.sdk.transforms.Aggregator;
 import com.google.cloud.dataflow.sdk.transforms.ApproximateUnique;
@@ -36,6 +37,9 @@ import com.google.cloud.dataflow.sdk.values.PCollectionTuple;
 import com.google.cloud.dataflow.sdk.values.PCollectionView;
 import com.google.cloud.dataflow.sdk.values.TupleTag;
 import com.google.cloud.dataflow.sdk.values.TupleTagList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -45,6 +49,8 @@ public class MultiOutputWordCountTest {
   private static final TupleTag<String> lower = new TupleTag<>();
   private static final TupleTag<KV<String, Long>> lowerCnts = new TupleTag<>();
   private static final TupleTag<KV<String, Long>> upperCnts = new TupleTag<>();
+  private static final TupleTag<Integer> evens = new TupleTag<>();
+  private static final TupleTag<Integer> odds = new TupleTag<>();
 
   @Test
   public void testRun() throws Exception {
@@ -73,6 +79,44 @@ public class MultiOutputWordCountTest {
     res.close();
   }
 
+  @Test
+  public void testOutputsSpanningChunks() throws Exception {
+    // Enough outputs for each tag to fill a couple of chunks, and leave a partial one.
+    List<Integer> numbers = Lists.newArrayList();
+    for (int i = 0; i < 4 * MultiDoFnFunction.CHUNK_SIZE + 10; i++) {
+      numbers.add(i);
+    }
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollectionTuple split = p.apply(Create.of(numbers)).setCoder(VarIntCoder.of())
+        .apply(ParDo.of(new SplitParityFn()).withOutputTags(evens, TupleTagList.of(odds)));
+    split.get(evens).setCoder(VarIntCoder.of());
+    split.get(odds).setCoder(VarIntCoder.of());
+
+    EvaluationResult res = SparkPipelineRunner.create().run(p);
+    List<Integer> actualEvens = Lists.newArrayList(res.get(split.get(evens)));
+    List<Integer> actualOdds = Lists.newArrayList(res.get(split.get(odds)));
+    Assert.assertEquals(numbers.size() / 2, actualEvens.size());
+    Assert.assertEquals(numbers.size() / 2, actualOdds.size());
+    ImmutableSet<Integer> all = ImmutableSet.<Integer>builder()
+        .addAll(actualEvens).addAll(actualOdds).build();
+    Assert.assertEquals(ImmutableSet.copyOf(numbers), all);
+    for (int even : actualEvens) {
+      Assert.assertEquals(0, even % 2);
+    }
+    res.close();
+  }
+
+  private static class SplitParityFn extends DoFn<Integer, Integer> {
+    @Override
+    public void processElement(ProcessContext c) {
+      if (c.element() % 2 == 0) {
+        c.output(c.element());
+      } else {
+        c.sideOutput(odds, c.element());
+      }
+    }
+  }
+
   /**
    * A DoFn that tokenizes lines of text into individual words.
    */
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OutputBufferTest {
+
+  @Test
+  public void testGrowsAndIterates() throws Exception {
+    OutputBuffer<Integer> buffer = new OutputBuffer<>();
+    List<Integer> outputs = Lists.newArrayList();
+    // More outputs than the initial capacity of the buffer.
+    for (int i = 0; i < 100; i++) {
+      buffer.add(i);
+      outputs.add(i);
+    }
+    Assert.assertEquals(outputs, Lists.newArrayList(buffer));
+    Assert.assertFalse(buffer.hasNext());
+  }
+
+  @Test
+  public void testClearDiscardsOutputs() throws Exception {
+    OutputBuffer<String> buffer = new OutputBuffer<>();
+    buffer.add("a");
+    buffer.add("b");
+    Assert.assertEquals("a", buffer.next());
+    buffer.clear();
+    Assert.assertFalse(buffer.hasNext());
+    buffer.add("c");
+    Assert.assertEquals(ImmutableList.of("c"), Lists.newArrayList(buffer));
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void testNextPastEnd() throws Exception {
+    OutputBuffer<String> buffer = new OutputBuffer<>();
+    buffer.add("a");
+    buffer.next();
+    buffer.next();
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.cloud.dataflow.sdk.coders.ByteArrayCoder;
+import com.google.cloud.dataflow.sdk.coders.Coder;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.transforms.Combine;
+import com.google.cloud.dataflow.sdk.transforms.Sum;
+import com.google.cloud.dataflow.sdk.values.KV;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import scala.Tuple2;
+
+public class PartialCombineFunctionTest {
+
+  @Test
+  public void testCombinesEqualArrayKeys() throws Exception {
+    // Equal arrays aren't equal objects, but they have the same encoding.
+    List<KV<byte[], Integer>> input = ImmutableList.of(
+        KV.of(new byte[] {1}, 1),
+        KV.of(new byte[] {2}, 2),
+        KV.of(new byte[] {1}, 3));
+    Combine.KeyedCombineFn<byte[], Integer, ?, Integer> sum =
+        new Sum.SumIntegerFn().<byte[]>asKeyedFn();
+    List<Tuple2<byte[], Integer>> partials =
+        combine(sum, ByteArrayCoder.of(), 100, input);
+    Assert.assertEquals(2, partials.size());
+    for (Tuple2<byte[], Integer> partial : partials) {
+      Assert.assertEquals(partial._1()[0] == 1 ? 4 : 2, (int) partial._2());
+    }
+  }
+
+  @Test
+  public void testEmitsPartialsOnceMaxKeysReached() throws Exception {
+    List<KV<String, Integer>> input = ImmutableList.of(
+        KV.of("a", 1), KV.of("b", 1), KV.of("a", 1), KV.of("c", 1), KV.of("a", 1));
+    Combine.KeyedCombineFn<String, Integer, ?, Integer> sum =
+        new Sum.SumIntegerFn().<String>asKeyedFn();
+    List<Tuple2<String, Integer>> partials = combine(sum, StringUtf8Coder.of(), 2, input);
+    // The partials are emitted for {a, b}, then {a, c}, then {a}.
+    Assert.assertEquals(5, partials.size());
+    int total = 0;
+    for (Tuple2<String, Integer> partial : partials) {
+      total += partial._2();
+    }
+    Assert.assertEquals(5, total);
+  }
+
+  private static <K, VI, VA> List<Tuple2<K, VI>> combine(
+      Combine.KeyedCombineFn<K, VI, VA, VI> keyed,
+      Coder<K> keyCoder,
+      int maxKeys,
+      List<KV<K, VI>> input) throws Exception {
+    PartialCombineFunction<K, VI, VA> fn = new PartialCombineFunction<>(keyed, keyCoder, maxKeys);
+    List<Tuple2<K, VI>> partials = Lists.newArrayList();
+    for (Tuple2<K, VA> partial : fn.call(input.iterator())) {
+      partials.add(new Tuple2<>(partial._1(), keyed.extractOutput(partial._1(), partial._2())));
+    }
+    return partials;
+  }
+}
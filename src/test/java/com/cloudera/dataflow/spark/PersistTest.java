@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.cloud.dataflow.sdk.Pipeline;
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.io.TextIO;
+import com.google.cloud.dataflow.sdk.options.PipelineOptionsFactory;
+import com.google.cloud.dataflow.sdk.transforms.Aggregator;
+import com.google.cloud.dataflow.sdk.transforms.Create;
+import com.google.cloud.dataflow.sdk.transforms.DoFn;
+import com.google.cloud.dataflow.sdk.transforms.ParDo;
+import com.google.cloud.dataflow.sdk.transforms.Sum;
+import com.google.cloud.dataflow.sdk.values.PCollection;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import java.io.File;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PersistTest {
+
+  @Rule
+  public final TemporaryFolder tmpDir = new TemporaryFolder();
+
+  @Test
+  public void testFanOutIsPersistedUntilRead() throws Exception {
+    testFanOut(SparkPipelineOptionsFactory.create());
+  }
+
+  @Test
+  public void testFanOutIsPersistedEncoded() throws Exception {
+    SparkPipelineOptions options = SparkPipelineOptionsFactory.create();
+    options.setPersistEncoded(true);
+    testFanOut(options);
+  }
+
+  private void testFanOut(SparkPipelineOptions options) throws Exception {
+    Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+    PCollection<String> strings = p.apply(Create.of("a", "b")).setCoder(StringUtf8Coder.of())
+        .apply(ParDo.of(new CountFn())).setCoder(StringUtf8Coder.of());
+    strings.apply(ParDo.of(new SuffixFn("1"))).setCoder(StringUtf8Coder.of())
+        .apply(TextIO.Write.to(new File(tmpDir.getRoot(), "first").getPath()));
+    strings.apply(ParDo.of(new SuffixFn("2"))).setCoder(StringUtf8Coder.of())
+        .apply(TextIO.Write.to(new File(tmpDir.getRoot(), "second").getPath()));
+    // Nothing reads the third value, which is only computed if it's retrieved.
+    PCollection<String> third = strings.apply(ParDo.of(new SuffixFn("3")))
+        .setCoder(StringUtf8Coder.of());
+
+    EvaluationContext res = (EvaluationContext) SparkPipelineRunner.create(options).run(p);
+    // Both writes read the persisted strings, which were only computed once, and remain
+    // persisted for the third value...
+    Assert.assertEquals(2, (int) res.getAggregatorValue("processed", Integer.class));
+    Assert.assertEquals(1, res.getSparkContext().sc().getPersistentRDDs().size());
+    // ...which reads them back rather than processing them again, and then releases them.
+    Assert.assertEquals(ImmutableSet.of("a3", "b3"), Sets.newHashSet(res.get(third)));
+    Assert.assertEquals(2, (int) res.getAggregatorValue("processed", Integer.class));
+    Assert.assertEquals(0, res.getSparkContext().sc().getPersistentRDDs().size());
+    res.close();
+  }
+
+  private static class CountFn extends DoFn<String, String> {
+    private Aggregator<Integer> processed;
+
+    @Override
+    public void startBundle(Context c) throws Exception {
+      processed = c.createAggregator("processed", new Sum.SumIntegerFn());
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      processed.addValue(1);
+      c.output(c.element());
+    }
+  }
+
+  private static class SuffixFn extends DoFn<String, String> {
+    private final String suffix;
+
+    SuffixFn(String suffix) {
+      this.suffix = suffix;
+    }
+
+    @Override
+    public void processElement(ProcessContext c) throws Exception {
+      c.output(c.element() + suffix);
+    }
+  }
+}
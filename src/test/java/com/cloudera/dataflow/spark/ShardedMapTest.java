@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.cloud.dataflow.sdk.coders.StringUtf8Coder;
+import com.google.cloud.dataflow.sdk.coders.VarIntCoder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import java.util.List;
+import java.util.Map;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.junit.Assert;
+import org.junit.Test;
+import scala.Tuple2;
+
+public class ShardedMapTest {
+
+  private static final int NUM_SHARDS = 2;
+
+  @Test
+  public void testEvictedShardIsReloaded() throws Exception {
+    Map<String, Integer> entries = ImmutableMap.of("a", 1, "b", 2, "c", 3, "d", 4);
+    JavaSparkContext jsc = new JavaSparkContext("local[1]", "ShardedMapTest");
+    try {
+      List<List<Tuple2<ByteArray, byte[]>>> shardEntries = Lists.newArrayList();
+      for (int i = 0; i < NUM_SHARDS; i++) {
+        shardEntries.add(Lists.<Tuple2<ByteArray, byte[]>>newArrayList());
+      }
+      for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+        ByteArray key =
+            new ByteArray(CoderHelpers.toByteArray(entry.getKey(), StringUtf8Coder.of()));
+        byte[] value = CoderHelpers.toByteArray(entry.getValue(), VarIntCoder.of());
+        shardEntries.get(ShardedMap.getShard(key, NUM_SHARDS)).add(new Tuple2<>(key, value));
+      }
+      EncodedMap.EncodedMapCoder<String, Integer> shardCoder =
+          new EncodedMap.EncodedMapCoder<>(StringUtf8Coder.of(), VarIntCoder.of(), Long.MAX_VALUE);
+      List<BroadcastHelper<EncodedMap<String, Integer>>> shards = Lists.newArrayList();
+      for (List<Tuple2<ByteArray, byte[]>> shard : shardEntries) {
+        BroadcastHelper<EncodedMap<String, Integer>> helper = new BroadcastHelper<>(
+            EncodedMap.of(shard, StringUtf8Coder.of(), VarIntCoder.of()), shardCoder);
+        helper.broadcast(jsc, false);
+        shards.add(helper);
+      }
+      ShardedMap<String, Integer> map = new ShardedMap<>(shards, StringUtf8Coder.of());
+      Assert.assertEquals(entries, ImmutableMap.copyOf(map));
+
+      // Decoded shards are shared through the cache until they're evicted.
+      BroadcastHelper<EncodedMap<String, Integer>> shard = shards.get(0);
+      EncodedMap<String, Integer> decoded = shard.getCachedValue();
+      Assert.assertSame(decoded, shard.getCachedValue());
+      shard.evict();
+      Assert.assertNotSame(decoded, shard.getCachedValue());
+      for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+        Assert.assertEquals(entry.getValue(), map.get(entry.getKey()));
+      }
+    } finally {
+      jsc.stop();
+    }
+  }
+}
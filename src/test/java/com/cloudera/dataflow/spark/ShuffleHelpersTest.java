@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2014, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+
+package com.cloudera.dataflow.spark;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import java.util.List;
+import java.util.Map;
+import org.apache.spark.ShuffleDependency;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.serializer.JavaSerializer;
+import org.apache.spark.serializer.KryoSerializer;
+import org.junit.Assert;
+import org.junit.Test;
+import scala.Tuple2;
+
+public class ShuffleHelpersTest {
+
+  @Test
+  public void testGroupByKey() throws Exception {
+    JavaSparkContext jsc = new JavaSparkContext("local[2]", "ShuffleHelpersTest");
+    try {
+      // Spark's own serializer is left alone.
+      Assert.assertTrue(jsc.env().serializer() instanceof JavaSerializer);
+      ByteArray a = new ByteArray(new byte[] {1});
+      ByteArray b = new ByteArray(new byte[] {2});
+      List<Tuple2<ByteArray, byte[]>> pairs = ImmutableList.of(
+          new Tuple2<>(a, new byte[] {10}),
+          new Tuple2<>(b, new byte[] {20}),
+          new Tuple2<>(a, new byte[] {11}));
+      JavaPairRDD<ByteArray, Iterable<byte[]>> grouped =
+          ShuffleHelpers.groupByKey(jsc.parallelizePairs(pairs, 2));
+      ShuffleDependency<?, ?, ?> dependency =
+          (ShuffleDependency<?, ?, ?>) grouped.rdd().dependencies().head();
+      Assert.assertTrue(dependency.serializer().get() instanceof KryoSerializer);
+
+      Map<ByteArray, Iterable<byte[]>> groups = grouped.collectAsMap();
+      Assert.assertEquals(2, groups.size());
+      Assert.assertEquals(2, Iterables.size(groups.get(a)));
+      Assert.assertEquals(20, Iterables.getOnlyElement(groups.get(b))[0]);
+    } finally {
+      jsc.stop();
+    }
+  }
+}